@@ -0,0 +1,64 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.AllArgsConstructor;
+
+import java.util.Arrays;
+
+/**
+ * Result codes of {@code chip-cert validate-att-cert}, see {@link ChipCertValidator}.
+ */
+@AllArgsConstructor
+enum AttestationVerificationResult {
+  kSuccess(0),
+  kPaaUntrusted(100),
+  kPaaNotFound(101),
+  kPaaExpired(102),
+  kPaaSignatureInvalid(103),
+  kPaaRevoked(104),
+  kPaaFormatInvalid(105),
+  kPaaArgumentInvalid(106),
+  kPaiExpired(200),
+  kPaiSignatureInvalid(201),
+  kPaiRevoked(202),
+  kPaiFormatInvalid(203),
+  kPaiArgumentInvalid(204),
+  kPaiVendorIdMismatch(205),
+  kPaiAuthorityNotFound(206),
+  kPaiMissing(207),
+  kDacExpired(300),
+  kDacSignatureInvalid(301),
+  kDacRevoked(302),
+  kDacFormatInvalid(303),
+  kDacArgumentInvalid(304),
+  kDacVendorIdMismatch(305),
+  kDacProductIdMismatch(306),
+  kDacAuthorityNotFound(307),
+  kFirmwareInformationMismatch(400),
+  kFirmwareInformationMissing(401),
+  kAttestationSignatureInvalid(500),
+  kAttestationElementsMalformed(501),
+  kAttestationNonceMismatch(502),
+  kAttestationSignatureInvalidFormat(503),
+  kCertificationDeclarationNoKeyId(600),
+  kCertificationDeclarationNoCertificateFound(601),
+  kCertificationDeclarationInvalidSignature(602),
+  kCertificationDeclarationInvalidFormat(603),
+  kCertificationDeclarationInvalidVendorId(604),
+  kCertificationDeclarationInvalidProductId(605),
+  kCertificationDeclarationInvalidPAA(606),
+  kNoMemory(700),
+  kInvalidArgument(800),
+  kInternalError(900),
+  kNotImplemented(0xFFFF);
+
+  private final int value;
+
+  public static AttestationVerificationResult of(final int code) {
+    return Arrays.stream(AttestationVerificationResult.values()).filter(r -> r.value == code).findFirst().orElse(kNotImplemented);
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.events.S3BatchResponse;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.val;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Issues DACs for the CSRs listed by a manifest (see {@link CsrBackfill}), at a sustained rate and without going through SQS. The
+ * manifest is either
+ * <ul>
+ *   <li>an S3 Inventory {@code manifest.json} of a CSV inventory, in which case only the latest versions are processed, or</li>
+ *   <li>a CSV file, possibly gzipped, with the {@code bucket,key[,version_id]} rows, as used by S3 Batch Operations.</li>
+ * </ul>
+ * The manifest is streamed and processed in chunks. The objects of a chunk which fail temporarily are tried again, up to
+ * {@value #MAX_CHUNK_ATTEMPTS} times in all. Once a chunk is done, the result of each of its objects is appended to
+ * {@value #RESULTS_FILE} in the S3 Batch Operations result schema, and the progress is checkpointed to {@value #SUMMARY_FILE},
+ * along with the number of objects per result code and the size of {@value #RESULTS_FILE}. Running the job again with the same
+ * output directory drops the results appended past the last checkpoint and resumes from it; the objects left with a {@code TemporaryFailure} aren't processed again by it, but can be by a job over a manifest
+ * of their rows.
+ * <p>
+ * Usage: {@code BackfillFromManifest <manifest_bucket> <manifest_key> <output_dir> [<parallelism>]}
+ */
+public class BackfillFromManifest {
+
+  static final String SUMMARY_FILE = "summary.json";
+  static final String RESULTS_FILE = "results.jsonl";
+  static final int DEFAULT_CHUNK_SIZE = 1_000;
+  /** Time a chunk may take; the CSRs which weren't started by then are reported as temporary failures. */
+  static final Duration CHUNK_TIME_BUDGET = Duration.ofMinutes(15);
+  static final int MAX_CHUNK_ATTEMPTS = 3;
+  /** Pause before retrying the temporary failures of a chunk, growing with each attempt. */
+  static final Duration DEFAULT_RETRY_DELAY = Duration.ofSeconds(10);
+  private static final String INVENTORY_MANIFEST = "manifest.json";
+
+  /**
+   * Progress of the job, which is also its checkpoint.
+   */
+  static class Summary {
+    String manifestBucket;
+    String manifestKey;
+    /** Number of the manifest rows processed so far. */
+    long processed;
+    /** Size of {@value #RESULTS_FILE} as of the checkpoint, the rows past it being appended again on resume. */
+    long resultsFileSize;
+    Map<String, Long> results = new TreeMap<>();
+    boolean completed;
+  }
+
+  /**
+   * Batch Operations result along with the object it's about.
+   */
+  @AllArgsConstructor
+  private static class ReportEntry {
+    final String bucket;
+    final String key;
+    final String versionId;
+    final String taskId;
+    final String resultCode;
+    final String resultString;
+  }
+
+  /**
+   * The part of S3 Inventory manifest we rely on.
+   */
+  private static class InventoryManifest {
+    String destinationBucket;
+    String fileFormat;
+    String fileSchema;
+    List<InventoryFile> files;
+  }
+
+  private static class InventoryFile {
+    String key;
+  }
+
+  @AllArgsConstructor
+  private static class ManifestFile {
+    final String bucket;
+    final String key;
+    /** Column indices by their names. */
+    final Map<String, Integer> columns;
+  }
+
+  private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+  private final S3Client s3Client;
+  private final CsrBackfill backfill;
+  private final int chunkSize;
+  private final Path outputDir;
+  private final Consumer<String> sink;
+  private final Duration retryDelay;
+
+  /**
+   * @param sink where the logs are written to.
+   */
+  BackfillFromManifest(@NonNull final S3Client s3Client,
+                       @NonNull final CsrBackfill backfill,
+                       final int chunkSize,
+                       @NonNull final Path outputDir,
+                       @NonNull final Consumer<String> sink) {
+    this(s3Client, backfill, chunkSize, outputDir, sink, DEFAULT_RETRY_DELAY);
+  }
+
+  BackfillFromManifest(@NonNull final S3Client s3Client,
+                       @NonNull final CsrBackfill backfill,
+                       final int chunkSize,
+                       @NonNull final Path outputDir,
+                       @NonNull final Consumer<String> sink,
+                       @NonNull final Duration retryDelay) {
+    this.s3Client = s3Client;
+    this.backfill = backfill;
+    this.chunkSize = chunkSize;
+    this.outputDir = outputDir;
+    this.sink = sink;
+    this.retryDelay = retryDelay;
+  }
+
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    if (args.length < 3) {
+      System.err.println("Usage: BackfillFromManifest <manifest_bucket> <manifest_key> <output_dir> [<parallelism>]");
+      System.exit(1);
+    }
+
+    val parallelism = args.length > 3 ? Integer.parseInt(args[3]) : CsrBackfill.DEFAULT_PARALLELISM;
+    val dacIssuer = DacIssuer.fromEnvironment(ChipCertValidator.perThread("backfill"));
+    try (final CsrBackfill backfill = new CsrBackfill(dacIssuer, parallelism)) {
+      val job = new BackfillFromManifest(S3Client.create(), backfill, DEFAULT_CHUNK_SIZE, Path.of(args[2]), System.out::println);
+      val summary = job.run(args[0], args[1]);
+      System.out.println("Processed " + summary.processed + " object(s): " + summary.results);
+    }
+  }
+
+  /**
+   * Processes all the objects listed by the manifest, resuming from the checkpoint in the output directory if there is one.
+   *
+   * @return the final summary, also stored in the output directory.
+   */
+  Summary run(@NonNull final String manifestBucket, @NonNull final String manifestKey) throws IOException, InterruptedException {
+    Files.createDirectories(outputDir);
+    val summary = loadSummary(manifestBucket, manifestKey);
+    if (summary.completed) {
+      return summary;
+    }
+    truncateResults(summary.resultsFileSize);
+
+    val chunk = new ArrayList<CsrBackfill.Task>(chunkSize);
+    long row = 0;
+    for (val manifestFile : manifestFiles(manifestBucket, manifestKey)) {
+      try (final BufferedReader reader = open(manifestFile.bucket, manifestFile.key)) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          if (line.isBlank() || row++ < summary.processed) {
+            continue;
+          }
+
+          val fields = parseCsvLine(line);
+          if ("false".equals(field(fields, manifestFile.columns, "IsLatest")) ||
+              "true".equals(field(fields, manifestFile.columns, "IsDeleteMarker"))) {
+            continue;
+          }
+          chunk.add(new CsrBackfill.Task(String.valueOf(row),
+                  field(fields, manifestFile.columns, "Bucket"),
+                  field(fields, manifestFile.columns, "Key"),
+                  field(fields, manifestFile.columns, "VersionId")));
+
+          if (chunk.size() == chunkSize) {
+            processChunk(chunk, row, summary);
+            chunk.clear();
+          }
+        }
+      }
+    }
+
+    processChunk(chunk, row, summary);
+    summary.completed = true;
+    storeSummary(summary);
+    return summary;
+  }
+
+  /**
+   * @param processed number of the manifest rows processed once the chunk is done.
+   */
+  private void processChunk(@NonNull final List<CsrBackfill.Task> chunk,
+                            final long processed,
+                            @NonNull final Summary summary) throws IOException, InterruptedException {
+    final S3BatchResponse.Result[] results = new S3BatchResponse.Result[chunk.size()];
+    List<Integer> pending = IntStream.range(0, chunk.size()).boxed().collect(Collectors.toList());
+    for (int attempt = 1; !pending.isEmpty(); ++attempt) {
+      if (attempt > 1) {
+        Thread.sleep(retryDelay.multipliedBy(attempt - 1).toMillis());
+      }
+
+      final List<S3BatchResponse.Result> attemptResults = backfill.run(
+              pending.stream().map(chunk::get).collect(Collectors.toList()),
+              System.currentTimeMillis() + CHUNK_TIME_BUDGET.toMillis(), sink);
+      val retries = new ArrayList<Integer>();
+      for (int i = 0; i < pending.size(); ++i) {
+        results[pending.get(i)] = attemptResults.get(i);
+        if (attemptResults.get(i).getResultCode() == S3BatchResponse.ResultCode.TemporaryFailure && attempt < MAX_CHUNK_ATTEMPTS) {
+          retries.add(pending.get(i));
+        }
+      }
+      pending = retries;
+    }
+
+    val report = new ArrayList<ReportEntry>(chunk.size());
+    for (int i = 0; i < chunk.size(); ++i) {
+      final CsrBackfill.Task task = chunk.get(i);
+      final S3BatchResponse.Result result = results[i];
+      summary.results.merge(result.getResultCode().name(), 1L, Long::sum);
+      report.add(new ReportEntry(task.bucket, task.key, task.versionId, result.getTaskId(), result.getResultCode().name(),
+                                 result.getResultString()));
+    }
+
+    if (!report.isEmpty()) {
+      val resultsFile = outputDir.resolve(RESULTS_FILE);
+      Files.writeString(resultsFile,
+              report.stream().map(gson::toJson).collect(Collectors.joining("\n", "", "\n")),
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      summary.resultsFileSize = Files.size(resultsFile);
+    }
+    summary.processed = processed;
+    storeSummary(summary);
+  }
+
+  /**
+   * @return the CSV files listed by the manifest.
+   */
+  private List<ManifestFile> manifestFiles(@NonNull final String manifestBucket, @NonNull final String manifestKey) {
+    if (!manifestKey.endsWith(INVENTORY_MANIFEST)) {
+      return List.of(new ManifestFile(manifestBucket, manifestKey, Map.of("Bucket", 0, "Key", 1, "VersionId", 2)));
+    }
+
+    val manifest = gson.fromJson(s3Client.getObjectAsBytes(GetObjectRequest.builder()
+            .bucket(manifestBucket)
+            .key(manifestKey)
+            .build()).asUtf8String(), InventoryManifest.class);
+    if (!"CSV".equals(manifest.fileFormat)) {
+      throw new IllegalArgumentException("Unsupported inventory format " + manifest.fileFormat + ", only CSV is supported");
+    }
+
+    val columns = new HashMap<String, Integer>();
+    val columnNames = manifest.fileSchema.split(",");
+    for (int i = 0; i < columnNames.length; ++i) {
+      columns.put(columnNames[i].trim(), i);
+    }
+    val bucket = BackfillHandler.bucketOf(manifest.destinationBucket);
+    return manifest.files.stream()
+            .map(file -> new ManifestFile(bucket, file.key, columns))
+            .collect(Collectors.toList());
+  }
+
+  private BufferedReader open(@NonNull final String bucket, @NonNull final String key) throws IOException {
+    InputStream input = s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
+    if (key.endsWith(".gz")) {
+      input = new GZIPInputStream(input);
+    }
+    return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+  }
+
+  private static String field(@NonNull final List<String> fields,
+                              @NonNull final Map<String, Integer> columns,
+                              @NonNull final String column) {
+    val index = columns.get(column);
+    return index == null || index >= fields.size() || fields.get(index).isEmpty() ? null : fields.get(index);
+  }
+
+  /**
+   * @return fields of the CSV row, which may be enclosed in double quotes.
+   */
+  static List<String> parseCsvLine(@NonNull final String line) {
+    val fields = new ArrayList<String>();
+    val field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); ++i) {
+      final char c = line.charAt(i);
+      if (quoted) {
+        if (c != '"') {
+          field.append(c);
+        } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          ++i;
+        } else {
+          quoted = false;
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  private Summary loadSummary(@NonNull final String manifestBucket, @NonNull final String manifestKey) throws IOException {
+    val summaryFile = outputDir.resolve(SUMMARY_FILE);
+    if (Files.exists(summaryFile)) {
+      val summary = gson.fromJson(Files.readString(summaryFile), Summary.class);
+      if (!manifestBucket.equals(summary.manifestBucket) || !manifestKey.equals(summary.manifestKey)) {
+        throw new IllegalArgumentException("Checkpoint in " + outputDir + " belongs to " + summary.manifestBucket + '/' +
+                                           summary.manifestKey);
+      }
+      return summary;
+    }
+
+    val summary = new Summary();
+    summary.manifestBucket = manifestBucket;
+    summary.manifestKey = manifestKey;
+    return summary;
+  }
+
+  private void truncateResults(final long size) throws IOException {
+    val resultsFile = outputDir.resolve(RESULTS_FILE);
+    if (Files.exists(resultsFile) && Files.size(resultsFile) > size) {
+      try (val channel = FileChannel.open(resultsFile, StandardOpenOption.WRITE)) {
+        channel.truncate(size);
+      }
+    }
+  }
+
+  private void storeSummary(@NonNull final Summary summary) throws IOException {
+    // Replace the checkpoint atomically, so an interruption never leaves a partially written one behind.
+    val tmpFile = outputDir.resolve(SUMMARY_FILE + ".tmp");
+    Files.writeString(tmpFile, gson.toJson(summary));
+    Files.move(tmpFile, outputDir.resolve(SUMMARY_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3BatchEvent;
+import com.amazonaws.services.lambda.runtime.events.S3BatchResponse;
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Handler of the Lambda Function invoked by an S3 Batch Operations job, which issues DACs for the CSRs listed by the job's manifest
+ * (see {@link CsrBackfill}). Unlike {@link Handler} it doesn't rely on S3 notifications or SQS, so the CSRs already sitting in the
+ * bucket can be processed again without re-uploading them. The tasks reported as {@code TemporaryFailure} are retried by the job.
+ * <p>
+ * Only the invocation schema version 1.0, the default of the jobs, is supported: the tasks of any other version are reported as
+ * {@code PermanentFailure}, as is any task without a bucket ARN.
+ * <p>
+ * A schema 1.0 invocation carries a single task, so the CSRs are processed one at a time; the throughput comes from the concurrent
+ * invocations instead.
+ */
+public class BackfillHandler implements RequestHandler<S3BatchEvent, S3BatchResponse> {
+
+  static final String SUPPORTED_SCHEMA_VERSION = "1.0";
+
+  private final CsrBackfill backfill;
+
+  public BackfillHandler() {
+    this(new CsrBackfill(DacIssuer.fromEnvironment(ChipCertValidator.perThread("dac")), 1));
+  }
+
+  BackfillHandler(@NonNull final CsrBackfill backfill) {
+    this.backfill = backfill;
+  }
+
+  @Override
+  public S3BatchResponse handleRequest(S3BatchEvent event, Context context) {
+    final LambdaLogger logger = context.getLogger();
+    val schemaSupported = SUPPORTED_SCHEMA_VERSION.equals(event.getInvocationSchemaVersion());
+    final S3BatchResponse.Result[] results = new S3BatchResponse.Result[event.getTasks().size()];
+    val tasks = new ArrayList<CsrBackfill.Task>();
+    val taskIndices = new ArrayList<Integer>();
+    for (int i = 0; i < event.getTasks().size(); ++i) {
+      val task = event.getTasks().get(i);
+      if (!schemaSupported || task.getS3BucketArn() == null) {
+        // E.g. schema 2.0 tasks name the bucket in a field this version of the events library doesn't know about.
+        results[i] = CsrBackfill.result(
+                new CsrBackfill.Task(task.getTaskId(), null, task.getS3Key(), task.getS3VersionId()),
+                S3BatchResponse.ResultCode.PermanentFailure,
+                "Unsupported invocation schema version " + event.getInvocationSchemaVersion() + " or no bucket ARN, " +
+                "the job should use version " + SUPPORTED_SCHEMA_VERSION);
+        continue;
+      }
+      tasks.add(new CsrBackfill.Task(task.getTaskId(), bucketOf(task.getS3BucketArn()), task.getS3Key(), task.getS3VersionId()));
+      taskIndices.add(i);
+    }
+
+    try {
+      val taskResults = backfill.run(tasks, System.currentTimeMillis() + context.getRemainingTimeInMillis(), logger::log);
+      for (int i = 0; i < taskIndices.size(); ++i) {
+        results[taskIndices.get(i)] = taskResults.get(i);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while processing " + tasks.size() + " task(s)", ex);
+    }
+
+    val response = new S3BatchResponse();
+    response.setInvocationSchemaVersion(event.getInvocationSchemaVersion());
+    response.setInvocationId(event.getInvocationId());
+    response.setTreatMissingKeysAs(S3BatchResponse.ResultCode.PermanentFailure);
+    response.setResults(Arrays.asList(results));
+    return response;
+  }
+
+  /**
+   * @return name of the bucket with the given ARN, e.g. {@code arn:aws:s3:::bucket}.
+   */
+  static String bucketOf(@NonNull final String bucketArn) {
+    return bucketArn.substring(bucketArn.lastIndexOf(':') + 1);
+  }
+}
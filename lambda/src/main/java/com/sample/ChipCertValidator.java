@@ -0,0 +1,112 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Validates the PAA - PAI - DAC chain with {@code chip-cert validate-att-cert}. The certificates are passed to the tool through the
+ * files the {@code ProcessBuilder} refers to, so a single instance must not be used by several threads at a time; use
+ * {@link #inDirectory(Path)} to get one per thread.
+ */
+class ChipCertValidator {
+
+  private static final Pattern RESULT_CODE = Pattern.compile("(\\d+)$");
+
+  /**
+   * Thrown when the chain doesn't pass the validation.
+   */
+  static class ValidationException extends RuntimeException {
+    final AttestationVerificationResult result;
+
+    ValidationException(@NonNull final String output, @NonNull final AttestationVerificationResult result) {
+      super("chip-cert validation failed with: " + output);
+      this.result = result;
+    }
+  }
+
+  private final ProcessBuilder procBuilder;
+  private final Path paaFile;
+  private final Path paiFile;
+  private final Path dacFile;
+
+  /**
+   * @param procBuilder runs {@code chip-cert} with the given files.
+   */
+  ChipCertValidator(@NonNull final ProcessBuilder procBuilder,
+                    @NonNull final Path paaFile,
+                    @NonNull final Path paiFile,
+                    @NonNull final Path dacFile) {
+    this.procBuilder = procBuilder;
+    this.paaFile = paaFile;
+    this.paiFile = paiFile;
+    this.dacFile = dacFile;
+  }
+
+  /**
+   * @param dir directory to keep the certificates being validated in.
+   * @return validator using {@code chip-cert} from the working directory, as it is deployed with the Lambda.
+   */
+  static ChipCertValidator inDirectory(@NonNull final Path dir) {
+    val paaFile = dir.resolve("paa.pem");
+    val paiFile = dir.resolve("pai.pem");
+    val dacFile = dir.resolve("dac.pem");
+    val procBuilder = new ProcessBuilder(
+            List.of(System.getProperty("user.dir") + "/chip-cert", "validate-att-cert",
+                    "--paa", paaFile.toString(), "--pai", paiFile.toString(), "--dac", dacFile.toString()));
+    return new ChipCertValidator(procBuilder, paaFile, paiFile, dacFile);
+  }
+
+  /**
+   * @param dirPrefix prefix of the temporary directories to keep the certificates in.
+   * @return supplier of a validator for the current thread, each thread getting its own directory.
+   */
+  static Supplier<ChipCertValidator> perThread(@NonNull final String dirPrefix) {
+    final ThreadLocal<ChipCertValidator> validators = ThreadLocal.withInitial(() -> {
+      try {
+        return inDirectory(Files.createTempDirectory(dirPrefix));
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    });
+    return validators::get;
+  }
+
+  /**
+   * @throws ValidationException if the chain isn't valid.
+   * @throws IOException         if {@code chip-cert} couldn't be run.
+   */
+  void validate(@NonNull final String paaPem,
+                @NonNull final String paiPem,
+                @NonNull final String dacPem) throws IOException, InterruptedException {
+    Files.writeString(paaFile, paaPem);
+    Files.writeString(paiFile, paiPem);
+    Files.writeString(dacFile, dacPem);
+
+    val proc = procBuilder.start();
+    val errCode = proc.waitFor();
+    if (errCode != 0) {
+      var output = new String(proc.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+      var result = AttestationVerificationResult.kInternalError;
+      val regexMatcher = RESULT_CODE.matcher(output);
+      if (regexMatcher.find()) {
+        result = AttestationVerificationResult.of(Integer.parseInt(regexMatcher.group()));
+        output += ": " + result.name();
+      }
+      throw new ValidationException(output, result);
+    }
+  }
+}
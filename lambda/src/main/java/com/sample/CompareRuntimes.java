@@ -0,0 +1,261 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.val;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.Environment;
+import software.amazon.awssdk.services.lambda.model.GetFunctionConfigurationRequest;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.lambda.model.LogType;
+import software.amazon.awssdk.services.lambda.model.UpdateFunctionConfigurationRequest;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two deployments of the same handler, typically the JVM one and the native image one (see {@code buildNativeZip}), by
+ * invoking them with the same payload and reading the {@code REPORT} lines of their logs:
+ * <ul>
+ *   <li>startup time, as the {@code Init Duration} of cold starts, forced by changing an environment variable of the function;</li>
+ *   <li>memory footprint, as the {@code Max Memory Used};</li>
+ *   <li>per-request latency, as the {@code Duration} of the warm invocations and the round trip seen by the caller.</li>
+ * </ul>
+ * The default payload is an SQS event with the S3 notification of the upload of the given CSR, so each invocation goes through
+ * the whole issuance and overwrites the DAC of that CSR; use a test CSR.
+ * <p>
+ * Usage:
+ * {@code CompareRuntimes <jvm_function> <native_function> <csr_bucket> <csr_key> [<cold_starts> [<warm_invocations> [<payload_file>]]]}
+ */
+public class CompareRuntimes {
+
+  static final int DEFAULT_COLD_STARTS = 5;
+  static final int DEFAULT_WARM_INVOCATIONS = 50;
+  /** Environment variable changed to get a fresh execution environment, removed once done. */
+  static final String COLD_START_MARKER = "coldStartMarker";
+
+
+  private static final Pattern DURATION = Pattern.compile("REPORT RequestId: \\S+\\s+Duration: ([\\d.]+) ms");
+  private static final Pattern INIT_DURATION = Pattern.compile("Init Duration: ([\\d.]+) ms");
+  private static final Pattern MAX_MEMORY_USED = Pattern.compile("Max Memory Used: (\\d+) MB");
+
+  /**
+   * What Lambda reports about an invocation.
+   */
+  @AllArgsConstructor
+  static class Report {
+    final double durationMs;
+    /** Only set for cold starts. */
+    final Double initDurationMs;
+    final int maxMemoryUsedMb;
+  }
+
+  /**
+   * Measurements of a function.
+   */
+  static class Measurements {
+    final List<Double> initDurationsMs = new ArrayList<>();
+    final List<Double> coldDurationsMs = new ArrayList<>();
+    final List<Double> coldRoundTripsMs = new ArrayList<>();
+    final List<Double> warmDurationsMs = new ArrayList<>();
+    final List<Double> warmRoundTripsMs = new ArrayList<>();
+    int maxMemoryUsedMb;
+  }
+
+  private final LambdaClient lambdaClient;
+
+  CompareRuntimes(@NonNull final LambdaClient lambdaClient) {
+    this.lambdaClient = lambdaClient;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 4) {
+      System.err.println("Usage: CompareRuntimes <jvm_function> <native_function> <csr_bucket> <csr_key> " +
+                         "[<cold_starts> [<warm_invocations> [<payload_file>]]]");
+      System.exit(1);
+    }
+
+    val coldStarts = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_COLD_STARTS;
+    val warmInvocations = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_WARM_INVOCATIONS;
+    val payload = args.length > 6 ? Files.readString(Path.of(args[6])) : uploadPayload(args[2], args[3]);
+
+    try (final LambdaClient lambdaClient = LambdaClient.create()) {
+      val compare = new CompareRuntimes(lambdaClient);
+      val jvm = compare.measure(args[0], coldStarts, warmInvocations, payload);
+      val nativeImage = compare.measure(args[1], coldStarts, warmInvocations, payload);
+
+      System.out.printf("%-28s %20s %20s%n", "", "JVM", "native");
+      print("Init duration (ms)", jvm.initDurationsMs, nativeImage.initDurationsMs);
+      print("Cold request duration (ms)", jvm.coldDurationsMs, nativeImage.coldDurationsMs);
+      print("Cold round trip (ms)", jvm.coldRoundTripsMs, nativeImage.coldRoundTripsMs);
+      print("Warm request duration (ms)", jvm.warmDurationsMs, nativeImage.warmDurationsMs);
+      print("Warm round trip (ms)", jvm.warmRoundTripsMs, nativeImage.warmRoundTripsMs);
+      System.out.printf("%-28s %20d %20d%n", "Max memory used (MB)", jvm.maxMemoryUsedMb, nativeImage.maxMemoryUsedMb);
+    }
+  }
+
+  /**
+   * @return SQS event carrying the S3 notification of the upload of the CSR, as the DAC issuing Lambda receives it.
+   */
+  static String uploadPayload(@NonNull final String bucket, @NonNull final String key) {
+    val bucketEntity = new JsonObject();
+    bucketEntity.addProperty("name", bucket);
+    val objectEntity = new JsonObject();
+    // S3 URL-encodes the keys of its notifications.
+    objectEntity.addProperty("key", URLEncoder.encode(key, StandardCharsets.UTF_8).replace("%2F", "/"));
+    val s3 = new JsonObject();
+    s3.add("bucket", bucketEntity);
+    s3.add("object", objectEntity);
+    val s3Record = new JsonObject();
+    s3Record.addProperty("eventSource", "aws:s3");
+    s3Record.addProperty("eventName", "ObjectCreated:Put");
+    s3Record.add("s3", s3);
+    val s3Records = new JsonArray();
+    s3Records.add(s3Record);
+    val s3Event = new JsonObject();
+    s3Event.add("Records", s3Records);
+
+    val sqsRecord = new JsonObject();
+    sqsRecord.addProperty("messageId", UUID.randomUUID().toString());
+    sqsRecord.addProperty("eventSource", "aws:sqs");
+    sqsRecord.addProperty("body", s3Event.toString());
+    val sqsRecords = new JsonArray();
+    sqsRecords.add(sqsRecord);
+    val sqsEvent = new JsonObject();
+    sqsEvent.add("Records", sqsRecords);
+    return sqsEvent.toString();
+  }
+
+  /**
+   * Invokes the function from a fresh execution environment {@code coldStarts} times, each followed by the warm invocations.
+   * The warm invocations are spread evenly across the cold starts.
+   */
+  Measurements measure(@NonNull final String functionName,
+                       final int coldStarts,
+                       final int warmInvocations,
+                       @NonNull final String payload) {
+    val measurements = new Measurements();
+    final Map<String, String> originalVariables = environmentOf(functionName);
+    try {
+      for (int i = 0; i < coldStarts; ++i) {
+        val variables = new HashMap<>(originalVariables);
+        variables.put(COLD_START_MARKER, UUID.randomUUID().toString());
+        updateEnvironment(functionName, variables);
+
+        val cold = invoke(functionName, payload, measurements.coldRoundTripsMs);
+        if (cold.initDurationMs == null) {
+          throw new IllegalStateException("Invocation of " + functionName + " wasn't a cold start");
+        }
+        measurements.initDurationsMs.add(cold.initDurationMs);
+        measurements.coldDurationsMs.add(cold.durationMs);
+        measurements.maxMemoryUsedMb = Math.max(measurements.maxMemoryUsedMb, cold.maxMemoryUsedMb);
+
+        val warmCount = warmInvocations / coldStarts + (i < warmInvocations % coldStarts ? 1 : 0);
+        for (int j = 0; j < warmCount; ++j) {
+          val warm = invoke(functionName, payload, measurements.warmRoundTripsMs);
+          measurements.warmDurationsMs.add(warm.durationMs);
+          measurements.maxMemoryUsedMb = Math.max(measurements.maxMemoryUsedMb, warm.maxMemoryUsedMb);
+        }
+      }
+    } finally {
+      updateEnvironment(functionName, originalVariables);
+    }
+    return measurements;
+  }
+
+  private Report invoke(@NonNull final String functionName,
+                        @NonNull final String payload,
+                        @NonNull final List<Double> roundTripsMs) {
+    val start = System.nanoTime();
+    val response = lambdaClient.invoke(InvokeRequest.builder()
+            .functionName(functionName)
+            .logType(LogType.TAIL)
+            .payload(SdkBytes.fromUtf8String(payload))
+            .build());
+    roundTripsMs.add((System.nanoTime() - start) / 1_000_000.0);
+
+    if (response.functionError() != null) {
+      throw new IllegalStateException("Invocation of " + functionName + " failed: " + response.payload().asUtf8String());
+    }
+    return parseReport(new String(Base64.getDecoder().decode(response.logResult()), StandardCharsets.UTF_8));
+  }
+
+  private Map<String, String> environmentOf(@NonNull final String functionName) {
+    val configuration = lambdaClient.getFunctionConfiguration(GetFunctionConfigurationRequest.builder()
+            .functionName(functionName)
+            .build());
+    val variables = new HashMap<String, String>();
+    if (configuration.environment() != null && configuration.environment().variables() != null) {
+      variables.putAll(configuration.environment().variables());
+    }
+    variables.remove(COLD_START_MARKER);
+    return variables;
+  }
+
+  private void updateEnvironment(@NonNull final String functionName, @NonNull final Map<String, String> variables) {
+    lambdaClient.updateFunctionConfiguration(UpdateFunctionConfigurationRequest.builder()
+            .functionName(functionName)
+            .environment(Environment.builder().variables(variables).build())
+            .build());
+    // New invocations only go to the updated configuration once the update is done.
+    lambdaClient.waiter().waitUntilFunctionUpdated(GetFunctionConfigurationRequest.builder()
+            .functionName(functionName)
+            .build());
+  }
+
+  /**
+   * @param log tail of the invocation's log, ending with its {@code REPORT} line.
+   */
+  static Report parseReport(@NonNull final String log) {
+    final Matcher duration = DURATION.matcher(log);
+    final Matcher maxMemoryUsed = MAX_MEMORY_USED.matcher(log);
+    if (!duration.find() || !maxMemoryUsed.find()) {
+      throw new IllegalArgumentException("No REPORT line in the log: " + log);
+    }
+    final Matcher initDuration = INIT_DURATION.matcher(log);
+    return new Report(Double.parseDouble(duration.group(1)),
+                      initDuration.find() ? Double.valueOf(initDuration.group(1)) : null,
+                      Integer.parseInt(maxMemoryUsed.group(1)));
+  }
+
+  /**
+   * @return the value below which the given fraction of the sorted values fall, using the nearest rank.
+   */
+  static double percentile(@NonNull final List<Double> sortedValues, final double fraction) {
+    if (sortedValues.isEmpty()) {
+      return Double.NaN;
+    }
+    val rank = (int) Math.ceil(fraction * sortedValues.size());
+    return sortedValues.get(Math.max(rank, 1) - 1);
+  }
+
+  private static void print(@NonNull final String name, @NonNull final List<Double> jvm, @NonNull final List<Double> nativeImage) {
+    System.out.printf("%-28s %20s %20s%n", name, summary(jvm), summary(nativeImage));
+  }
+
+  private static String summary(@NonNull final List<Double> values) {
+    val sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return String.format("p50 %.1f / p90 %.1f", percentile(sorted, 0.5), percentile(sorted, 0.9));
+  }
+}
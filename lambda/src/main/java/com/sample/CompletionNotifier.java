@@ -0,0 +1,53 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+
+import java.util.List;
+
+/**
+ * Lets the clients know a batch of their CSRs has been processed, so they don't have to poll the bucket for the {@code .pem} or
+ * {@code .err} objects of each of them.
+ * <p>
+ * A batch is normally published once, but two invocations of {@link ManifestAggregator} seeing its last outcomes at the same time
+ * may both publish it, so the clients should ignore repeated batch IDs.
+ */
+interface CompletionNotifier {
+
+  /** Used when no notification channel is configured; the manifests are still written. */
+  CompletionNotifier NONE = (bucket, manifestKey, batchId, completions) -> {};
+
+  /**
+   * Outcome of a single CSR.
+   */
+  @AllArgsConstructor
+  class Completion {
+    enum Status {
+      ISSUED,
+      FAILED
+    }
+
+    public final String csrKey;
+    public final Status status;
+    /** The {@code .pem} object if the DAC has been issued, the {@code .err} one otherwise. */
+    public final String outputKey;
+    public final String paiArn;
+    /** Whether the CSR is going to be processed again, so the failure isn't final. */
+    public final boolean retry;
+    public final String message;
+  }
+
+  /**
+   * @param bucket      bucket the CSRs were uploaded to.
+   * @param manifestKey the manifest listing the same completions.
+   * @param batchId     the client batch.
+   * @param completions final outcomes of the CSRs of the batch.
+   * @throws RuntimeException if the notification couldn't be delivered.
+   */
+  void publish(@NonNull String bucket, @NonNull String manifestKey, @NonNull String batchId, @NonNull List<Completion> completions);
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.events.S3BatchResponse;
+import com.google.common.collect.Lists;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.val;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Issues DACs for CSRs already sitting in the bucket, e.g. after a PAI swap or an outage, without re-uploading them to get S3
+ * notifications. The CSRs are split into small runs processed by a bounded pool of workers, each run going through the same
+ * {@link DacIssuer} path as the CSRs coming from SQS. The outcomes are reported in the S3 Batch Operations result schema:
+ * <ul>
+ *   <li>{@code Succeeded} if the DAC has been issued, or if the object isn't a CSR and so is skipped;</li>
+ *   <li>{@code TemporaryFailure} if the CSR is worth retrying;</li>
+ *   <li>{@code PermanentFailure} otherwise.</li>
+ * </ul>
+ */
+class CsrBackfill implements AutoCloseable {
+
+  static final int DEFAULT_PARALLELISM = 8;
+  /** CSRs a worker processes in a row, sharing the PAI lookups and the log batch. */
+  static final int CSRS_PER_RUN = 10;
+
+  /**
+   * Object listed by the manifest.
+   */
+  @AllArgsConstructor
+  static class Task {
+    public final String taskId;
+    public final String bucket;
+    /** The key, URL-encoded as in the manifests and Batch Operations events. */
+    public final String key;
+    /** May be {@code null} to use the latest version. */
+    public final String versionId;
+  }
+
+  private final DacIssuer dacIssuer;
+  private final StructuredLogger structuredLogger = new StructuredLogger();
+  private final ExecutorService executor;
+
+  CsrBackfill(@NonNull final DacIssuer dacIssuer, final int parallelism) {
+    this.dacIssuer = dacIssuer;
+    this.executor = Executors.newFixedThreadPool(parallelism);
+  }
+
+  /**
+   * @param deadlineMillis point in time, in milliseconds since the epoch, after which no CSR should be started.
+   * @param sink           where the logs are written to.
+   * @return result of each task, in the same order.
+   */
+  List<S3BatchResponse.Result> run(@NonNull final List<Task> tasks,
+                                   final long deadlineMillis,
+                                   @NonNull final Consumer<String> sink) throws InterruptedException {
+    final S3BatchResponse.Result[] results = new S3BatchResponse.Result[tasks.size()];
+    val csrIndices = new ArrayList<Integer>();
+    for (int i = 0; i < tasks.size(); ++i) {
+      if (decodedKey(tasks.get(i)).endsWith(".csr")) {
+        csrIndices.add(i);
+      } else {
+        results[i] = result(tasks.get(i), S3BatchResponse.ResultCode.Succeeded, "Skipped, not a CSR");
+      }
+    }
+
+    final List<Callable<Void>> runs = Lists.partition(csrIndices, CSRS_PER_RUN).stream()
+            .map(indices -> (Callable<Void>) () -> {
+              val csrs = indices.stream()
+                      .map(i -> new DacIssuer.CsrObject(tasks.get(i).bucket, decodedKey(tasks.get(i)), tasks.get(i).versionId))
+                      .collect(Collectors.toList());
+              try (final StructuredLogger.Batch log = structuredLogger.open(sink)) {
+                val outcomes = dacIssuer.issue(csrs, new TimeBudget(deadlineMillis - System.currentTimeMillis()), log);
+                for (int j = 0; j < indices.size(); ++j) {
+                  results[indices.get(j)] = result(tasks.get(indices.get(j)), outcomes.get(j));
+                }
+              }
+              return null;
+            })
+            .collect(Collectors.toList());
+
+    for (val future : executor.invokeAll(runs)) {
+      try {
+        future.get();
+      } catch (ExecutionException ex) {
+        throw new IllegalStateException("Backfill run failed unexpectedly", ex.getCause());
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private static String decodedKey(@NonNull final Task task) {
+    return URLDecoder.decode(task.key, StandardCharsets.UTF_8);
+  }
+
+  private static S3BatchResponse.Result result(@NonNull final Task task, @NonNull final CompletionNotifier.Completion outcome) {
+    if (outcome.status == CompletionNotifier.Completion.Status.ISSUED) {
+      return result(task, S3BatchResponse.ResultCode.Succeeded, outcome.outputKey);
+    }
+    return result(task,
+                  outcome.retry ? S3BatchResponse.ResultCode.TemporaryFailure : S3BatchResponse.ResultCode.PermanentFailure,
+                  outcome.message);
+  }
+
+  static S3BatchResponse.Result result(@NonNull final Task task,
+                                       @NonNull final S3BatchResponse.ResultCode resultCode,
+                                       final String resultString) {
+    val result = new S3BatchResponse.Result();
+    result.setTaskId(task.taskId);
+    result.setResultCode(resultCode);
+    result.setResultString(resultString);
+    return result;
+  }
+}
@@ -0,0 +1,890 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3Entity;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.openssl.PEMParser;
+import org.joda.time.DateTime;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.acmpca.AcmPcaClient;
+import software.amazon.awssdk.services.acmpca.model.GetCertificateAuthorityCertificateRequest;
+import software.amazon.awssdk.services.acmpca.model.InvalidArgsException;
+import software.amazon.awssdk.services.acmpca.model.InvalidArnException;
+import software.amazon.awssdk.services.acmpca.model.MalformedCsrException;
+import software.amazon.awssdk.services.acmpca.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.utils.Pair;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.sample.StructuredLogger.fields;
+import static com.sample.StructuredLogger.printException;
+
+/**
+ * Runtime-agnostic core of DAC issuance, shared by the Lambda {@link Handler} and the long-running {@link SqsWorker}. It takes the
+ * SQS messages carrying S3 notifications about uploaded CSRs, gets the CSRs signed with the requested PAI (its ARN is part of the S3
+ * key) and uploads resulting certificates next to them (see {@link DacIssuer#process(List, TimeBudget, StructuredLogger.Batch)}).
+ * <p>
+ * Instead of the PAI ARN the key may start from {@code pool/<pool_name>}, in which case the request is routed to one of the PAIs of
+ * the pool (see {@link PaiPoolRouter}); the ARN of the PAI which actually signed the DAC is then stored in the {@code pai-arn}
+ * metadata of the resulting object. A CSR naming an unknown pool gets an {@code .err} like any other invalid request, while a pool
+ * whose members differ in VID/PID fails the configuration as it's loaded.
+ * <p>
+ * Processing keeps an eye on the time left (see {@link TimeBudget}): once the remaining time is not expected to be enough for
+ * another request, the unstarted requests are reported back as failures, so only they get redelivered by SQS. A certificate
+ * which PCA has issued but which wasn't ready before the deadline is recorded next to the CSR as {@code <name>.pending}, so the
+ * redelivered request fetches it instead of issuing another one; a first delivery doesn't look for it. The idempotency token, derived
+ * from the CSR, only covers repeated requests within PCA's few minutes window, which SQS redeliveries come after.
+ * <p>
+ * A client may upload CSRs as a batch, with the {@code batch-id} and {@code batch-size} metadata, to wait for the manifest of the
+ * whole batch rather than for the results of each CSR. The final outcome of each CSR of a batch, including one rejected for its key,
+ * is recorded as soon as the CSR is done, and {@link ManifestAggregator} writes the manifest apart from the issuance. The requests to
+ * be retried don't count until they're done, unless it's the last delivery SQS makes ({@code maxReceiveCount}) before moving the
+ * message to the dead-letter queue: the outcome is then recorded as final. A request deferred on its last delivery goes to the
+ * dead-letter queue without an outcome, and redriving the queue completes its batch, while a key which can't be parsed is only
+ * logged. A CSR without the metadata only gets its {@code .pem} or {@code .err}.
+ * <p>
+ * {@code IssueCertificate} calls may be throttled to the account's PCA quota with a {@link RateLimiter}, for runtimes which, unlike
+ * the Lambda with its reserved concurrency, aren't capped otherwise. A request which can't get a permit before the deadline is
+ * deferred.
+ * <p>
+ * A single instance may be used by several threads at a time, as long as the validators it's given are not shared between them.
+ */
+class DacIssuer {
+
+  private static final String DEFAULT_VALIDITY_IN_DAYS = "1865";
+  private static final String POOL_KEY_PREFIX = "pool";
+  static final String PAI_ARN_METADATA = "pai-arn";
+  static final String PENDING_EXT = "pending";
+  static final String BATCH_ID_METADATA = "batch-id";
+  static final String BATCH_SIZE_METADATA = "batch-size";
+  /** Batch IDs end up in the keys, so they're kept to a single, safe path segment. */
+  private static final Pattern BATCH_ID = Pattern.compile("[A-Za-z0-9_.-]{1,128}");
+
+  private final JsonDeserializer<DateTime> dateTimeDeserializer =
+          (json, typeOfT, context) -> DateTime.parse(json.getAsString());
+  protected final Gson gson = new GsonBuilder()
+          .setPrettyPrinting()
+          .registerTypeAdapter(org.joda.time.DateTime.class, dateTimeDeserializer)
+          .create();
+  protected final S3Client s3Client;
+  protected final DefaultCredentialsProvider credentialsProvider = DefaultCredentialsProvider.create();
+  protected final IssueDeviceAttestationCertificate issueDeviceAttestationCertificate;
+  protected final Supplier<ChipCertValidator> validators;
+  protected final PaiPoolRouter paiPoolRouter;
+  /** May be {@code null} if the issuance isn't throttled here. */
+  private final RateLimiter issuanceRateLimiter;
+  /** Deliveries of a message SQS makes before moving it to the dead-letter queue, 0 if unknown. */
+  private final int maxReceiveCount;
+  private final Map<String, IssueDeviceAttestationCertificate> regionalIssuers = new ConcurrentHashMap<>();
+
+  /**
+   * @param validators returns the validator for the current thread.
+   */
+  DacIssuer(@NonNull final S3Client s3Client,
+            @NonNull final IssueDeviceAttestationCertificate issueDeviceAttestationCertificate,
+            @NonNull final Supplier<ChipCertValidator> validators,
+            @NonNull final PaiPoolRouter paiPoolRouter) {
+    this(s3Client, issueDeviceAttestationCertificate, validators, paiPoolRouter, null);
+  }
+
+  /**
+   * @param issuanceRateLimiter acquired before each {@code IssueCertificate} call, may be {@code null}.
+   */
+  DacIssuer(@NonNull final S3Client s3Client,
+            @NonNull final IssueDeviceAttestationCertificate issueDeviceAttestationCertificate,
+            @NonNull final Supplier<ChipCertValidator> validators,
+            @NonNull final PaiPoolRouter paiPoolRouter,
+            final RateLimiter issuanceRateLimiter) {
+    this(s3Client, issueDeviceAttestationCertificate, validators, paiPoolRouter, issuanceRateLimiter, 0);
+  }
+
+  /**
+   * @param maxReceiveCount deliveries of a message SQS makes before moving it to the dead-letter queue, 0 if unknown.
+   */
+  DacIssuer(@NonNull final S3Client s3Client,
+            @NonNull final IssueDeviceAttestationCertificate issueDeviceAttestationCertificate,
+            @NonNull final Supplier<ChipCertValidator> validators,
+            @NonNull final PaiPoolRouter paiPoolRouter,
+            final RateLimiter issuanceRateLimiter,
+            final int maxReceiveCount) {
+    this.s3Client = s3Client;
+    this.issueDeviceAttestationCertificate = issueDeviceAttestationCertificate;
+    this.validators = validators;
+    this.paiPoolRouter = paiPoolRouter;
+    this.issuanceRateLimiter = issuanceRateLimiter;
+    this.maxReceiveCount = maxReceiveCount;
+  }
+
+  /**
+   * @return issuer using the default clients and the configuration from the environment.
+   */
+  static DacIssuer fromEnvironment(@NonNull final Supplier<ChipCertValidator> validators) {
+    return fromEnvironment(validators, null);
+  }
+
+  /**
+   * @param issuanceRateLimiter acquired before each {@code IssueCertificate} call, may be {@code null}.
+   * @return issuer using the default clients and the configuration from the environment.
+   */
+  static DacIssuer fromEnvironment(@NonNull final Supplier<ChipCertValidator> validators,
+                                   final RateLimiter issuanceRateLimiter) {
+    val issuer = new DacIssuer(
+            S3Client.create(),
+            new IssueDeviceAttestationCertificate(AcmPcaClient.builder()
+                    .credentialsProvider(DefaultCredentialsProvider.create())
+                    .build()),
+            validators,
+            PaiPoolRouter.fromJson(System.getenv("paiPools")),
+            issuanceRateLimiter,
+            Integer.parseInt(Optional.ofNullable(System.getenv("maxReceiveCount")).orElse("0")));
+    issuer.paiPoolRouter.checkMembers(issuer::paiSubjectOf);
+    return issuer;
+  }
+
+  /**
+   * SQS message, which is expected to carry an S3 notification.
+   */
+  @AllArgsConstructor
+  static class Message {
+    public final String messageId;
+    public final String body;
+    /** How many times SQS has delivered the message, including this time, or 0 if unknown. */
+    public final int receiveCount;
+  }
+
+  static class S3Structure {
+    public final String prefix;
+    public final String pool;
+    public final String pid;
+    public final String name;
+    public final String ext;
+
+    public S3Structure(@NonNull final String key) {
+      val keyParts = key.split("/");
+      if (keyParts.length != 4 || !keyParts[3].contains(".")) {
+        throw new RuntimeException("Unexpected key " + key + ", should be <pca_arn>/<PAI_ARN>/<pid>/<name>.csr or " +
+                                   POOL_KEY_PREFIX + "/<pool_name>/<pid>/<name>.csr");
+      }
+
+      prefix = keyParts[0] + '/' + keyParts[1];
+      pool = keyParts[0].equals(POOL_KEY_PREFIX) ? keyParts[1] : null;
+      pid = keyParts[2];
+      name = keyParts[3].substring(0, keyParts[3].lastIndexOf('.'));
+      ext = keyParts[3].substring(keyParts[3].lastIndexOf('.') + 1);
+    }
+
+    @Override
+    public String toString() {
+      return prefix + '/' + pid + '/' + name + '.' + ext;
+    }
+
+    public String genOutputKey(@NonNull final String ext) {
+      return prefix + '/' + pid + '/' + name + '.' + ext;
+    }
+  }
+
+  /**
+   * CSR object to issue the DAC for regardless of S3 notifications, e.g. when listed by a manifest.
+   */
+  @AllArgsConstructor
+  static class CsrObject {
+    public final String bucket;
+    /** The key, not URL-encoded. */
+    public final String key;
+    /** May be {@code null} to use the latest version. */
+    public final String versionId;
+  }
+
+  @RequiredArgsConstructor
+  private static class Request {
+    public final S3Structure key;
+    public final String bucket;
+    public final String version;
+    /** ID of the SQS message or any other ID the request is reported back with. */
+    public final String messageId;
+    public final String paiArn;
+    /** Whether an earlier attempt may have left a pending certificate behind. */
+    public final boolean mayBePending;
+    /** Whether the request won't be delivered again, so its outcome is final even if it's to be retried. */
+    public final boolean lastDelivery;
+    /** Known once the CSR has been read, {@code null} if it isn't part of a client batch. */
+    ClientBatch batch;
+  }
+
+  /**
+   * Thrown when it's unknown whether an earlier attempt has left a certificate pending, e.g. as S3 throttles.
+   */
+  private static class PendingUnavailableException extends RuntimeException {
+    PendingUnavailableException(@NonNull final String message, @NonNull final Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * Certificate issued for a CSR, but not retrieved yet.
+   */
+  @AllArgsConstructor
+  private static class PendingCertificate {
+    final String certificateArn;
+    final String paiArn;
+    /** Hash of the CSR the certificate was issued for, in case the CSR gets replaced meanwhile. */
+    final String csrSha256;
+  }
+
+  /**
+   * Certificate along with the PAI which has signed it, which may differ from the one the request is routed to if the certificate
+   * was issued by an earlier attempt.
+   */
+  @AllArgsConstructor
+  private static class SignedCertificate {
+    final String certificate;
+    final String paiArn;
+    final boolean wasPending;
+  }
+
+  /**
+   * Batch of CSRs the client waits for as a whole, as told by the metadata of the CSRs.
+   */
+  @AllArgsConstructor
+  private static class ClientBatch {
+    final String id;
+    final int size;
+  }
+
+  /**
+   * @param messages SQS messages to process.
+   * @param budget   time available for the processing.
+   * @return IDs of the messages which should be redelivered.
+   */
+  Set<String> process(@NonNull final List<Message> messages,
+                      @NonNull final TimeBudget budget,
+                      @NonNull final StructuredLogger.Batch log) {
+    val failedMessageIds = new LinkedHashSet<String>();
+    val rejected = new LinkedHashMap<Request, CompletionNotifier.Completion>();
+
+    // process event
+    log.info("sqsEventsReceived", "Found " + messages.size() + " sqs event(s)", fields("count", messages.size()));
+
+    // Obtain all the S3 messages.
+    final List<Request> requests = messages.stream().flatMap(sqsMessage -> {
+      try {
+        // The actual message is coming from S3, let's try to restore the original S3Event object.
+        // Interestingly, accessor is called Records while property is called records, so we need to help Gson with it.
+        final String body = sqsMessage.body.replace("Records", "records");
+        val s3Event = gson.fromJson(body, S3Event.class);
+        log.info("s3EventsReceived", "Found " + s3Event.getRecords().size() + " s3 event(s)",  // Always 1 in our case.
+                 fields("messageId", sqsMessage.messageId, "count", s3Event.getRecords().size()));
+
+        return s3Event.getRecords().stream().filter(s3Message -> {
+          if (!s3Message.getEventSource().equals("aws:s3") || !s3Message.getEventName().equals("ObjectCreated:Put")) {
+            log.audit("messageSkipped", "Skipping unexpected message " + s3Message,
+                      fields("messageId", sqsMessage.messageId));
+            return false;
+          }
+          return true;
+        }).map(s3Message -> Pair.of(s3Message.getS3(), sqsMessage));
+      } catch (JsonSyntaxException | JsonIOException | IllegalStateException ex) {
+        log.error("messageSkipped", "Skipping unexpected message " + sqsMessage.body, ex,
+                  fields("messageId", sqsMessage.messageId));
+        return Stream.of();
+      }
+    }).flatMap(s3Object -> {
+      final S3Entity s3 = s3Object.left();
+      final S3Structure s3Key;
+      try {
+        // Need to get URL mangling out of our way.
+        final String keyUnwrapped = URLDecoder.decode(s3.getObject().getKey(), StandardCharsets.UTF_8);
+        s3Key = new S3Structure(keyUnwrapped);
+      } catch (Exception ex) {
+        log.error("keySkipped", "Invalid input object key " + s3.getObject().getKey() + ", skipping", ex,
+                  fields("messageId", s3Object.right().messageId, "key", s3.getObject().getKey()));
+        return Stream.of();
+      }
+
+      final String paiArn;
+      try {
+        paiArn = s3Key.pool != null ? paiPoolRouter.acquire(s3Key.pool) : s3Key.prefix;
+      } catch (IllegalArgumentException ex) {
+        // The pool is unknown, but the key tells where the client expects the outcome.
+        reject(new Request(s3Key, s3.getBucket().getName(), s3.getObject().getVersionId(), s3Object.right().messageId,
+                           null, false, true), ex, rejected, log);
+        return Stream.of();
+      }
+
+      // Only a redelivered message may find a certificate left pending by an earlier attempt.
+      val receiveCount = s3Object.right().receiveCount;
+      return Stream.of(new Request(s3Key, s3.getBucket().getName(), s3.getObject().getVersionId(), s3Object.right().messageId,
+                                   paiArn, receiveCount != 1, maxReceiveCount > 0 && receiveCount >= maxReceiveCount));
+    }).collect(Collectors.toList());
+
+    processRequests(requests, rejected, budget, failedMessageIds, log);
+
+    if (!failedMessageIds.isEmpty()) {
+      log.audit("batchFailures", "Failed " + failedMessageIds.size() + " request(s)", fields("messageIds", failedMessageIds));
+    }
+
+    return failedMessageIds;
+  }
+
+  /**
+   * Issues the DACs for the given CSRs the same way as for the ones coming from SQS.
+   *
+   * @param csrs   CSR objects to process.
+   * @param budget time available for the processing.
+   * @return outcome of each CSR, in the same order; the ones which weren't started in time are reported as failed with a retry.
+   */
+  List<CompletionNotifier.Completion> issue(@NonNull final List<CsrObject> csrs,
+                                            @NonNull final TimeBudget budget,
+                                            @NonNull final StructuredLogger.Batch log) {
+    final CompletionNotifier.Completion[] outcomes = new CompletionNotifier.Completion[csrs.size()];
+    val requests = new ArrayList<Request>(csrs.size());
+    val rejected = new LinkedHashMap<Request, CompletionNotifier.Completion>();
+    for (int i = 0; i < csrs.size(); ++i) {
+      val csr = csrs.get(i);
+      final S3Structure s3Key;
+      try {
+        s3Key = new S3Structure(csr.key);
+      } catch (RuntimeException ex) {
+        log.error("keySkipped", "Invalid input object key " + csr.key + ", skipping", ex, fields("key", csr.key));
+        outcomes[i] = new CompletionNotifier.Completion(csr.key, CompletionNotifier.Completion.Status.FAILED, null, null, false,
+                                                        ex.toString());
+        continue;
+      }
+
+      try {
+        val paiArn = s3Key.pool != null ? paiPoolRouter.acquire(s3Key.pool) : s3Key.prefix;
+        requests.add(new Request(s3Key, csr.bucket, csr.versionId, String.valueOf(i), paiArn, true, false));
+      } catch (IllegalArgumentException ex) {
+        reject(new Request(s3Key, csr.bucket, csr.versionId, String.valueOf(i), null, false, true), ex, rejected, log);
+      }
+    }
+
+    val completions = processRequests(requests, rejected, budget, new LinkedHashSet<>(), log);
+    for (val completion : completions.entrySet()) {
+      outcomes[Integer.parseInt(completion.getKey().messageId)] = completion.getValue();
+    }
+    for (val request : requests) {
+      if (outcomes[Integer.parseInt(request.messageId)] == null) {
+        outcomes[Integer.parseInt(request.messageId)] = new CompletionNotifier.Completion(
+                request.key.toString(), CompletionNotifier.Completion.Status.FAILED, null, request.paiArn, true,
+                "Not started before the deadline");
+      }
+    }
+    return Arrays.asList(outcomes);
+  }
+
+  /**
+   * Signs the requests grouped by their PAI, while there is time left.
+   *
+   * @param completions      outcomes of the requests rejected before being grouped.
+   * @param failedMessageIds collects IDs of the requests which should be retried.
+   * @return outcomes of the started and the rejected requests.
+   */
+  private Map<Request, CompletionNotifier.Completion> processRequests(@NonNull final List<Request> requests,
+                                                                     @NonNull final Map<Request, CompletionNotifier.Completion> completions,
+                                                                     @NonNull final TimeBudget budget,
+                                                                     @NonNull final Set<String> failedMessageIds,
+                                                                     @NonNull final StructuredLogger.Batch log) {
+
+    // For each group do the signing.
+    String paaPem, paiPem;
+    for (val paiRequests : requests.stream().collect(Collectors.groupingBy(request -> request.paiArn)).entrySet()) {
+      if (!budget.canStart(1)) {
+        deferRequests(paiRequests.getValue(), failedMessageIds, budget, log);
+        continue;
+      }
+
+      final Map<String, String> paiSubjDic;
+      final long paiStartMillis = budget.now();
+      try {
+        // Obtain the PAI first, because we need its VID and, if present, its PID.
+        val paiRequest = GetCertificateAuthorityCertificateRequest.builder()
+                .certificateAuthorityArn(paiRequests.getKey())
+                .build();
+        val pai = issuerFor(paiRequests.getKey()).client.getCertificateAuthorityCertificate(paiRequest);
+
+        // Parse the PAI CA certificate.
+        paaPem = pai.certificateChain();
+        paiPem = pai.certificate();
+        paiSubjDic = subjectOf(paiPem);
+      } catch (IOException | AwsServiceException | SdkClientException ex) {
+        log.error("paiUnavailable", "Couldn't obtain information about PAI " + paiRequests.getKey() + ", skipping " +
+                  paiRequests.getValue().size() + " requests", ex,
+                  fields("paiArn", paiRequests.getKey(), "count", paiRequests.getValue().size()));
+        for (val request : paiRequests.getValue()) {
+          failedMessageIds.add(request.messageId);
+          complete(completions, request, CompletionNotifier.Completion.Status.FAILED, null, true, ex.toString());
+          if (request.key.pool != null) {
+            paiPoolRouter.release(request.key.pool, request.paiArn, budget.now() - paiStartMillis, false);
+          }
+        }
+        continue;
+      }
+
+      // Sign the requests using AWS PCA.
+      val groupRequests = paiRequests.getValue();
+      for (int i = 0; i < groupRequests.size(); ++i) {
+        if (!budget.canStart(1)) {
+          deferRequests(groupRequests.subList(i, groupRequests.size()), failedMessageIds, budget, log);
+          break;
+        }
+
+        val request = groupRequests.get(i);
+        final long startMillis = budget.now();
+        boolean healthy = false;
+        try {
+          healthy = processRequest(request, paiPem, paaPem, paiSubjDic, budget.deadline(), failedMessageIds, completions, log);
+          recordCompletion(request, completions.get(request), log);
+        } finally {
+          budget.recordItem(startMillis);
+          if (request.key.pool != null) {
+            paiPoolRouter.release(request.key.pool, request.paiArn, budget.now() - startMillis, healthy);
+          }
+        }
+      }
+    }
+
+    return completions;
+  }
+
+  private void deferRequests(@NonNull final List<Request> requests,
+                             @NonNull final Set<String> failedMessageIds,
+                             @NonNull final TimeBudget budget,
+                             @NonNull final StructuredLogger.Batch log) {
+    log.audit("requestsDeferred", "Deferring " + requests.size() + " request(s) as only " + budget.remainingMillis() +
+              "ms left while " + budget.predictedItemCostMillis() + "ms expected per request",
+              fields("keys", requests.stream().map(request -> request.key.toString()).collect(Collectors.toList())));
+    for (val request : requests) {
+      failedMessageIds.add(request.messageId);
+      if (request.key.pool != null) {
+        paiPoolRouter.cancel(request.key.pool, request.paiArn);
+      }
+    }
+  }
+
+  /**
+   * @return {@code false} if PCA throttled the request, {@code true} otherwise.
+   */
+  private boolean processRequest(@NonNull final Request request,
+                                 @NonNull final String paiPem,
+                                 @NonNull final String paaPem,
+                                 @NonNull final Map<String, String> paiSubjDic,
+                                 @NonNull final Instant deadline,
+                                 @NonNull final Set<String> failedMessageIds,
+                                 @NonNull final Map<Request, CompletionNotifier.Completion> completions,
+                                 @NonNull final StructuredLogger.Batch log) {
+    final String bucket = request.bucket;
+    final S3Structure key = request.key;
+    final SignedCertificate signed;
+    try {
+      signed = processCsr(request, paiSubjDic, deadline);
+    } catch (IssueDeviceAttestationCertificate.DeadlineExceededException ex) {
+      // Not a failure of the request, so no .err; the retry picks up the certificate if it's been issued already.
+      log.audit("dacPending", ex.getMessage(), fields("bucket", bucket, "key", key.toString(), "paiArn", request.paiArn,
+                                                       "certificateArn", ex.certificateArn));
+      complete(completions, request, CompletionNotifier.Completion.Status.FAILED, null, true, ex.getMessage());
+      failedMessageIds.add(request.messageId);
+      return true;
+    } catch (PendingUnavailableException ex) {
+      // Says nothing about the CSR either, so it's retried without an .err.
+      log.error("pendingUnavailable", ex.getMessage(), ex.getCause(), fields("bucket", bucket, "key", key.toString()));
+      complete(completions, request, CompletionNotifier.Completion.Status.FAILED, null, true, ex.getMessage());
+      failedMessageIds.add(request.messageId);
+      return true;
+    } catch (Exception ex) {
+      final boolean retry = !(ex instanceof IllegalArgumentException);
+      storeError(request, ex, retry, completions, log);
+      if (retry) {
+        failedMessageIds.add(request.messageId);
+      }
+      return !isThrottled(ex);
+    }
+
+    // Validate using chip-cert tool, against the PAI which has actually signed the certificate.
+    try {
+      if (signed.paiArn.equals(request.paiArn)) {
+        validators.get().validate(paaPem, paiPem, signed.certificate);
+      } else {
+        val pai = issuerFor(signed.paiArn).client.getCertificateAuthorityCertificate(
+                GetCertificateAuthorityCertificateRequest.builder().certificateAuthorityArn(signed.paiArn).build());
+        validators.get().validate(pai.certificateChain(), pai.certificate(), signed.certificate);
+      }
+    } catch (IOException | RuntimeException | InterruptedException ex) {
+      final boolean retry = !(ex instanceof IOException) && !(ex instanceof InterruptedException);
+      storeError(request, ex, retry, completions, log);
+      if (retry) {
+        failedMessageIds.add(request.messageId);
+      }
+
+      return true;
+    }
+
+    // Store the result in S3.
+    final String resultKey = key.genOutputKey("pem");
+    try {
+      val s3ObjVersion = storeResult(bucket, resultKey, signed.certificate, Map.of(PAI_ARN_METADATA, signed.paiArn), s3Client);
+      log.audit("dacIssued", "Succeeded signing " + bucket + '/' + resultKey + ':' + s3ObjVersion + " with " + signed.paiArn,
+                fields("bucket", bucket, "key", resultKey, "version", s3ObjVersion, "paiArn", signed.paiArn));
+      completions.put(request, new CompletionNotifier.Completion(
+              key.toString(), CompletionNotifier.Completion.Status.ISSUED, resultKey, signed.paiArn, false, null));
+    } catch (RuntimeException ex) {
+      final boolean retry = !(ex instanceof IllegalArgumentException);
+      log.error("dacNotStored", "Couldn't write object " + bucket + '/' + resultKey, ex,
+                fields("bucket", bucket, "key", resultKey, "paiArn", request.paiArn, "retry", retry));
+      complete(completions, request, CompletionNotifier.Completion.Status.FAILED, null, retry, ex.toString());
+      if (retry) {
+        failedMessageIds.add(request.messageId);
+      }
+      return true;
+    }
+
+    if (signed.wasPending) {
+      final String pendingKey = key.genOutputKey(PENDING_EXT);
+      try {
+        s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(pendingKey).build());
+      } catch (RuntimeException ex) {
+        // Harmless, it's only used if the same CSR is processed again.
+        log.error("pendingNotDeleted", "Couldn't delete object " + bucket + '/' + pendingKey, ex,
+                  fields("bucket", bucket, "key", pendingKey));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Logs the failure and stores its details next to the CSR, so the client learns about it.
+   */
+  private void storeError(@NonNull final Request request,
+                          @NonNull final Exception ex,
+                          final boolean retry,
+                          @NonNull final Map<Request, CompletionNotifier.Completion> completions,
+                          @NonNull final StructuredLogger.Batch log) {
+    final String bucket = request.bucket;
+    final S3Structure key = request.key;
+    val errMessage = "Skipping CSR " + bucket + '/' + key + " due to " + printException(ex);
+    log.error("csrRejected", "Skipping CSR " + bucket + '/' + key, ex,
+              fields("bucket", bucket, "key", key.toString(), "paiArn", request.paiArn, "retry", retry));
+    final String resultKey = key.genOutputKey("err");
+    try {
+      storeResult(bucket, resultKey, errMessage, s3Client);
+      complete(completions, request, CompletionNotifier.Completion.Status.FAILED, resultKey, retry, ex.toString());
+    } catch (Exception s3Ex) {
+      log.error("errNotStored", "Couldn't create .err file", s3Ex, fields("bucket", bucket, "key", key.toString()));
+      complete(completions, request, CompletionNotifier.Completion.Status.FAILED, null, retry, ex.toString());
+    }
+  }
+
+  private static void complete(@NonNull final Map<Request, CompletionNotifier.Completion> completions,
+                               @NonNull final Request request,
+                               @NonNull final CompletionNotifier.Completion.Status status,
+                               final String outputKey,
+                               final boolean retry,
+                               final String message) {
+    completions.put(request,
+                    new CompletionNotifier.Completion(request.key.toString(), status, outputKey, request.paiArn, retry, message));
+  }
+
+  /**
+   * Rejects a request which can't be processed at all, with an {@code .err} and an outcome like for any other invalid CSR.
+   */
+  private void reject(@NonNull final Request request,
+                      @NonNull final RuntimeException ex,
+                      @NonNull final Map<Request, CompletionNotifier.Completion> completions,
+                      @NonNull final StructuredLogger.Batch log) {
+    storeError(request, ex, false, completions, log);
+    try {
+      request.batch = batchOf(s3Client.headObject(HeadObjectRequest.builder()
+              .bucket(request.bucket)
+              .key(request.key.toString())
+              .versionId(request.version)
+              .build()).metadata());
+    } catch (RuntimeException metadataEx) {
+      log.error("batchUnknown", "Couldn't read the batch of CSR " + request.bucket + '/' + request.key, metadataEx,
+                fields("bucket", request.bucket, "key", request.key.toString()));
+      return;
+    }
+    recordCompletion(request, completions.get(request), log);
+  }
+
+  /**
+   * Records the final outcome of a CSR of a client batch for {@link ManifestAggregator}. Outcomes to be retried aren't recorded,
+   * unless the request won't be delivered again. The DAC itself is already stored, so a failure here doesn't fail the request.
+   */
+  private void recordCompletion(@NonNull final Request request,
+                                final CompletionNotifier.Completion completion,
+                                @NonNull final StructuredLogger.Batch log) {
+    if (completion == null || request.batch == null || (completion.retry && !request.lastDelivery)) {
+      return;
+    }
+
+    val finalCompletion = !completion.retry ? completion : new CompletionNotifier.Completion(
+            completion.csrKey, completion.status, completion.outputKey, completion.paiArn, false,
+            completion.message + ", given up after the last delivery");
+    val completionKey = ManifestAggregator.completionKey(request.key.prefix + '/' + request.key.pid, request.batch.id,
+                                                         request.key.name);
+    try {
+      storeResult(request.bucket, completionKey, gson.toJson(finalCompletion),
+                  Map.of(BATCH_ID_METADATA, request.batch.id, BATCH_SIZE_METADATA, String.valueOf(request.batch.size)), s3Client);
+    } catch (RuntimeException ex) {
+      log.error("completionNotStored", "Couldn't write object " + request.bucket + '/' + completionKey, ex,
+                fields("bucket", request.bucket, "key", completionKey, "batchId", request.batch.id));
+    }
+  }
+
+  /**
+   * @return client batch the CSR belongs to according to its metadata, {@code null} if none.
+   * @throws IllegalArgumentException if the metadata is malformed.
+   */
+  private static ClientBatch batchOf(final Map<String, String> metadata) {
+    if (metadata == null) {
+      return null;
+    }
+
+    val id = metadata.get(BATCH_ID_METADATA);
+    val size = metadata.get(BATCH_SIZE_METADATA);
+    if (id == null && size == null) {
+      return null;
+    }
+    if (id == null || size == null || !BATCH_ID.matcher(id).matches() || !size.matches("[1-9][0-9]{0,8}") ||
+        Integer.parseInt(size) > ManifestAggregator.MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("Unexpected " + BATCH_ID_METADATA + " " + id + " or " + BATCH_SIZE_METADATA + " " +
+                                         size + ", should be a name of letters, digits, '_', '.' or '-', and a positive count " +
+                                         "up to " + ManifestAggregator.MAX_BATCH_SIZE);
+    }
+    return new ClientBatch(id, Integer.parseInt(size));
+  }
+
+  /**
+   * @return items of the subject of the PAI, keyed by their OIDs.
+   * @throws RuntimeException if the PAI couldn't be obtained.
+   */
+  private Map<String, String> paiSubjectOf(@NonNull final String paiArn) {
+    val pai = issuerFor(paiArn).client.getCertificateAuthorityCertificate(
+            GetCertificateAuthorityCertificateRequest.builder().certificateAuthorityArn(paiArn).build());
+    try {
+      return subjectOf(pai.certificate());
+    } catch (IOException ex) {
+      throw new RuntimeException("Couldn't parse the certificate of PAI " + paiArn, ex);
+    }
+  }
+
+  private static Map<String, String> subjectOf(@NonNull final String pem) throws IOException {
+    final X500Name subject = ((X509CertificateHolder) new PEMParser(new StringReader(pem)).readObject()).getSubject();
+    return Arrays.stream(subject.getRDNs()).collect(Collectors.toMap(
+            rdn -> rdn.getFirst().getType().toString(),
+            rdn -> rdn.getFirst().getValue().toString()));
+  }
+
+  /**
+   * @return the issuer talking to PCA in the region of the given PAI, as PAIs of a pool may reside in different regions.
+   */
+  private IssueDeviceAttestationCertificate issuerFor(@NonNull final String paiArn) {
+    return foreignRegionOf(paiArn)
+            .map(region -> regionalIssuers.computeIfAbsent(region, r -> new IssueDeviceAttestationCertificate(
+                    AcmPcaClient.builder()
+                            .credentialsProvider(credentialsProvider)
+                            .region(Region.of(r))
+                            .build())))
+            .orElse(issueDeviceAttestationCertificate);
+  }
+
+  /**
+   * @return region of the resource if it's known and differs from the one we're running in.
+   */
+  static Optional<String> foreignRegionOf(@NonNull final String arn) {
+    val arnParts = arn.split(":");
+    if (arnParts.length < 4 || arnParts[3].isEmpty() || arnParts[3].equals(System.getenv("AWS_REGION"))) {
+      return Optional.empty();
+    }
+    return Optional.of(arnParts[3]);
+  }
+
+  private static boolean isThrottled(@NonNull final Throwable ex) {
+    for (Throwable currEx = ex; currEx != null; currEx = currEx.getCause()) {
+      if (currEx instanceof SdkServiceException && ((SdkServiceException) currEx).isThrottlingException()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String storeResult(@NonNull final String bucket,
+                             @NonNull final String key,
+                             @NonNull final String data,
+                             @NonNull final S3Client s3Client) throws RuntimeException {
+    return storeResult(bucket, key, data, Map.of(), s3Client);
+  }
+
+  private String storeResult(@NonNull final String bucket,
+                             @NonNull final String key,
+                             @NonNull final String data,
+                             @NonNull final Map<String, String> metadata,
+                             @NonNull final S3Client s3Client) throws RuntimeException {
+    val putObjectReq = PutObjectRequest.builder()
+            .bucket(bucket)
+            .key(key)
+            .metadata(metadata)
+            .build();
+    val putObjectRequestBody = RequestBody.fromString(data);
+    try {
+      val result = s3Client.putObject(putObjectReq, putObjectRequestBody);
+      return result.versionId();
+    } catch (NoSuchBucketException | NoSuchKeyException ex) {
+      throw new IllegalArgumentException("Couldn't write object " + bucket + '/' + key, ex);
+    } catch (Exception ex) {
+      throw new RuntimeException("Couldn't write object " + bucket + '/' + key, ex);
+    }
+  }
+
+  /**
+   * @param request    the CSR to sign, whose client batch is filled in once the CSR has been read.
+   * @param paiSubjDic map with PAI Subject's items.
+   * @param deadline   point in time after which we stop waiting for the certificate to be issued.
+   * @return resulting certificate, which is the one issued by an earlier attempt if that attempt ran out of time.
+   * @throws IssueDeviceAttestationCertificate.DeadlineExceededException if the certificate couldn't be obtained in time; if
+   *                                                                       it's been issued, it's recorded as pending.
+   * @throws RuntimeException if anything goes wrong.
+   * @apiNote {@code S3}'s key should start from PAI ARN (or the PAI pool alias) and a slash following.
+   */
+  private @NonNull SignedCertificate processCsr(@NonNull final Request request,
+                                     @NonNull final Map<String, String> paiSubjDic,
+                                     @NonNull final Instant deadline) throws RuntimeException {
+    final String bucket = request.bucket;
+    final S3Structure s3Key = request.key;
+    final String paiArn = request.paiArn;
+    final String version = request.version;
+
+    // Example input validation.
+    if (!s3Key.ext.equals("csr")) {
+      throw new IllegalArgumentException("Unexpected key " + s3Key + ", should have .csr extension");
+    }
+
+    final GetObjectRequest req = GetObjectRequest.builder()
+            .bucket(bucket)
+            .key(s3Key.toString())
+            .versionId(version)
+            .build();
+
+    val result = s3Client.getObject(req);
+    String csr;
+    try {
+      csr = new String(result.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException ex) {
+      throw new RuntimeException("Couldn't access S3 object " + s3Key, ex);
+    }
+    request.batch = batchOf(result.response() != null ? result.response().metadata() : null);
+
+    final String csrSha256 = Hashing.sha256().hashString(csr, StandardCharsets.UTF_8).toString();
+    final PendingCertificate pending = request.mayBePending ? loadPending(bucket, s3Key, csrSha256) : null;
+    try {
+      if (pending != null) {
+        return new SignedCertificate(
+                issuerFor(pending.paiArn).fetch(pending.paiArn, pending.certificateArn, deadline), pending.paiArn, true);
+      }
+      acquireIssuancePermit(paiArn, deadline);
+      val validityInDays = Long.parseLong(Optional.ofNullable(System.getenv("dacValidityInDays")).orElse(DEFAULT_VALIDITY_IN_DAYS));
+      return new SignedCertificate(
+              issuerFor(paiArn).run(paiArn, s3Key.pid, paiSubjDic, csr, validityInDays, deadline), paiArn, false);
+    } catch (IssueDeviceAttestationCertificate.DeadlineExceededException ex) {
+      if (ex.certificateArn != null && pending == null) {
+        storeResult(bucket, s3Key.genOutputKey(PENDING_EXT),
+                    gson.toJson(new PendingCertificate(ex.certificateArn, paiArn, csrSha256)), s3Client);
+      }
+      throw ex;
+    } catch (ResourceNotFoundException | InvalidArnException | InvalidArgsException | MalformedCsrException | IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Couldn't sign the request in " + bucket + '/' +
+              s3Key + ':' + version, ex);
+    } catch (Exception ex) {
+      throw new RuntimeException("Couldn't sign the request in " + bucket + '/' + s3Key + ':' + version, ex);
+    }
+  }
+
+  /**
+   * Waits for the rate limiter, if any, to allow another {@code IssueCertificate} call, as long as there is still time to issue.
+   *
+   * @throws IssueDeviceAttestationCertificate.DeadlineExceededException if the permit wouldn't come in time.
+   */
+  private void acquireIssuancePermit(@NonNull final String paiArn, @NonNull final Instant deadline) {
+    if (issuanceRateLimiter == null) {
+      return;
+    }
+
+    val maxWait = Duration.between(Instant.now(), deadline).minus(IssueDeviceAttestationCertificate.MIN_TIME_TO_ISSUE);
+    if (!issuanceRateLimiter.tryAcquire(Math.max(0L, maxWait.toMillis()), TimeUnit.MILLISECONDS)) {
+      throw new IssueDeviceAttestationCertificate.DeadlineExceededException(
+              "IssueCertificate rate limit leaves no time to issue a certificate with " + paiArn, null);
+    }
+  }
+
+  /**
+   * @return certificate issued for the CSR by an earlier attempt, if any.
+   * @throws PendingUnavailableException if the record couldn't be read.
+   */
+  private PendingCertificate loadPending(@NonNull final String bucket,
+                                         @NonNull final S3Structure s3Key,
+                                         @NonNull final String csrSha256) {
+    final String pendingKey = s3Key.genOutputKey(PENDING_EXT);
+    final PendingCertificate pending;
+    try (val result = s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(pendingKey).build())) {
+      pending = gson.fromJson(new String(result.readAllBytes(), StandardCharsets.UTF_8), PendingCertificate.class);
+    } catch (NoSuchKeyException ex) {
+      return null;
+    } catch (IOException | SdkException ex) {
+      throw new PendingUnavailableException("Couldn't read object " + bucket + '/' + pendingKey, ex);
+    } catch (JsonParseException ex) {
+      throw new RuntimeException("Couldn't read object " + bucket + '/' + pendingKey, ex);
+    }
+    // A record of another CSR uploaded under the same name is stale.
+    return pending != null && csrSha256.equals(pending.csrSha256) ? pending : null;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.val;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequest;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequestEntry;
+
+import java.util.List;
+
+/**
+ * Publishes an EventBridge event per batch, so a client can wait for its batch with a rule matching e.g. {@code detail.batchId}, then
+ * read the manifest. The outcomes themselves are left to the manifest, as a batch may be larger than an event may carry.
+ */
+@AllArgsConstructor
+class EventBridgeCompletionNotifier implements CompletionNotifier {
+
+  static final String SOURCE = "matter.dac-issuer";
+  static final String DETAIL_TYPE = "DAC Issuance Completed";
+
+  private final Gson gson = new Gson();
+  private final EventBridgeClient eventBridgeClient;
+  private final String eventBusName;
+
+  @Override
+  public void publish(@NonNull final String bucket,
+                      @NonNull final String manifestKey,
+                      @NonNull final String batchId,
+                      @NonNull final List<Completion> completions) {
+    val detail = new JsonObject();
+    detail.addProperty("bucket", bucket);
+    detail.addProperty("manifestKey", manifestKey);
+    detail.addProperty("batchId", batchId);
+    detail.addProperty("count", completions.size());
+    detail.addProperty("issued", completions.stream().filter(completion -> completion.status == Completion.Status.ISSUED).count());
+    val entry = PutEventsRequestEntry.builder()
+            .eventBusName(eventBusName)
+            .source(SOURCE)
+            .detailType(DETAIL_TYPE)
+            .detail(gson.toJson(detail))
+            .build();
+
+    val response = eventBridgeClient.putEvents(PutEventsRequest.builder().entries(entry).build());
+    if (response.failedEntryCount() != null && response.failedEntryCount() > 0) {
+      throw new RuntimeException("Couldn't publish completion of batch " + batchId + " to " + eventBusName);
+    }
+  }
+}
@@ -5,6 +5,7 @@
 
 package com.sample;
 
+import com.google.common.hash.Hashing;
 import lombok.NonNull;
 import lombok.val;
 import org.bouncycastle.asn1.x509.KeyUsage;
@@ -17,12 +18,15 @@ import software.amazon.awssdk.services.acmpca.model.*;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.Period;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -31,11 +35,54 @@ import java.util.stream.Stream;
  */
 public class IssueDeviceAttestationCertificate {
 
+   /** Time to leave for PCA to make the certificate available, as issuing it after the deadline would only orphan it. */
+   static final Duration MIN_TIME_TO_ISSUE = Duration.ofSeconds(2L);
+   private static final Duration POLL_INTERVAL = Duration.ofSeconds(1L);
+   /** PCA doesn't accept longer idempotency tokens. */
+   static final int MAX_IDEMPOTENCY_TOKEN_LENGTH = 36;
+
+   /**
+    * Waits while the certificate is being issued; tests only pretend to.
+    */
+   interface Sleeper {
+      void sleep(@NonNull Duration duration) throws InterruptedException;
+   }
+
+   /**
+    * Thrown when the deadline doesn't leave enough time to get the certificate. If PCA has issued it already, its ARN is set, so
+    * a retry can fetch it with {@link #fetch(String, String, Instant)} instead of issuing another one.
+    */
+   public static class DeadlineExceededException extends RuntimeException {
+      public final String certificateArn;
+
+      DeadlineExceededException(@NonNull final String message, final String certificateArn) {
+         super(message);
+         this.certificateArn = certificateArn;
+      }
+   }
+
    //protected final DefaultCredentialsProvider credentialsProvider = DefaultCredentialsProvider.create();
    protected final AcmPcaClient client;
+   private final Supplier<Instant> clock;
+   private final Sleeper sleeper;
 
    public IssueDeviceAttestationCertificate(@NonNull final AcmPcaClient client) {
+      this(client, Instant::now, duration -> Thread.sleep(duration.toMillis()));
+   }
+
+   IssueDeviceAttestationCertificate(@NonNull final AcmPcaClient client,
+                                     @NonNull final Supplier<Instant> clock,
+                                     @NonNull final Sleeper sleeper) {
       this.client = client;
+      this.clock = clock;
+      this.sleeper = sleeper;
+   }
+
+   /**
+    * @return token which makes PCA issue a single certificate for the same CSR, should the request be repeated meanwhile.
+    */
+   static String idempotencyTokenOf(@NonNull final String csr) {
+      return Hashing.sha256().hashString(csr, StandardCharsets.UTF_8).toString().substring(0, MAX_IDEMPOTENCY_TOKEN_LENGTH);
    }
 
    private static String generateKeyUsageValue() throws IOException {
@@ -49,6 +96,22 @@ public class IssueDeviceAttestationCertificate {
                               @NonNull Map<String, String> paiSubjDic,
                               @NonNull final String csr,
                               final long validityInDays) throws IOException, InterruptedException {
+      return run(paiArn, pid, paiSubjDic, csr, validityInDays, Instant.MAX);
+   }
+
+   /**
+    * Same as {@link #run(String, String, Map, String, long)}, but gives up waiting for the issued certificate once the
+    * {@code deadline} has passed.
+    *
+    * @throws DeadlineExceededException if there is not enough time left to issue the certificate, or if it wasn't ready before
+    *                                   the deadline.
+    */
+   public @NonNull String run(@NonNull final String paiArn,
+                              @NonNull final String pid,
+                              @NonNull Map<String, String> paiSubjDic,
+                              @NonNull final String csr,
+                              final long validityInDays,
+                              @NonNull final Instant deadline) throws IOException, InterruptedException {
 
       // Parse the PAI CA certificate.
       if (paiSubjDic.containsKey("1.3.6.1.4.1.37244.2.2") && !paiSubjDic.get("1.3.6.1.4.1.37244.2.2").equals(pid)) {
@@ -121,18 +184,32 @@ public class IssueDeviceAttestationCertificate {
                       .signingAlgorithm(SigningAlgorithm.SHA256_WITHECDSA)
                       // Set the validity period for the certificate to be issued.
                       .validity(validity)
-                      // Set the idempotency token.
-                      .idempotencyToken("1234")
+                      // Set the idempotency token, so a repeated request for the same CSR doesn't issue another certificate.
+                      .idempotencyToken(idempotencyTokenOf(csr))
                       // Set the custom extensions.
                       .apiPassthrough(apiPassthrough)
                       .build();
 
+      // Don't issue the certificate unless there is time to retrieve it.
+      if (clock.get().plus(MIN_TIME_TO_ISSUE).isAfter(deadline)) {
+         throw new DeadlineExceededException("Not enough time left to issue a certificate with " + paiArn, null);
+      }
+
       // Issue the certificate.
       IssueCertificateResponse result = client.issueCertificate(req);
 
       // Retrieve the certificate.
-      final String certArn = result.certificateArn();
+      return fetch(paiArn, result.certificateArn(), deadline);
+   }
 
+   /**
+    * Waits for the certificate issued by the given PAI until it's ready.
+    *
+    * @throws DeadlineExceededException if the certificate wasn't ready before the deadline.
+    */
+   public @NonNull String fetch(@NonNull final String paiArn,
+                                @NonNull final String certArn,
+                                @NonNull final Instant deadline) throws InterruptedException {
       final GetCertificateRequest certReq = GetCertificateRequest.builder()
               .certificateAuthorityArn(paiArn)
               .certificateArn(certArn)
@@ -142,8 +219,11 @@ public class IssueDeviceAttestationCertificate {
          try {
             return client.getCertificate(certReq).certificate();
          } catch (RequestInProgressException ignore) {
-            // Not ready yet, let's wait longer
-            Thread.sleep(Duration.ofSeconds(1L).toMillis());
+            // Not ready yet, let's wait longer, unless we're out of time.
+            if (clock.get().plus(POLL_INTERVAL).isAfter(deadline)) {
+               throw new DeadlineExceededException("Certificate " + certArn + " wasn't ready before the deadline", certArn);
+            }
+            sleeper.sleep(POLL_INTERVAL);
          }
       } while (true);
    }
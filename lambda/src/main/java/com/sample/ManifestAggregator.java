@@ -0,0 +1,207 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.val;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static com.sample.StructuredLogger.fields;
+
+/**
+ * Writes the manifest of a client batch once all its CSRs have a final outcome, and publishes it with the
+ * {@link CompletionNotifier}. This runs apart from the issuance, triggered by the S3 notification of each recorded outcome (see
+ * {@link ManifestHandler}), so collecting a large batch neither delays the DACs nor eats into the time of the invocations issuing
+ * them.
+ * <p>
+ * {@link DacIssuer} records the outcome of a CSR as {@code <PAI_ARN or pool>/<pid>/manifests/<batch_id>/<name>.completion.json},
+ * with the {@code batch-size} of the CSR as metadata. Each outcome lists the batch, which takes a few pages at most as batches are
+ * capped to {@link #MAX_BATCH_SIZE} CSRs. The one finding as many outcomes as the batch size, with no manifest
+ * {@code <PAI_ARN or pool>/<pid>/manifests/<batch_id>.json} yet, reads them back in parallel and writes the manifest.
+ */
+class ManifestAggregator {
+
+  static final String MANIFEST_DIR = "manifests";
+  static final String COMPLETION_SUFFIX = ".completion.json";
+  static final int MAX_BATCH_SIZE = 10_000;
+  static final int DEFAULT_PARALLELISM = 16;
+
+  private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+  private final S3Client s3Client;
+  private final CompletionNotifier completionNotifier;
+  private final int parallelism;
+
+  @AllArgsConstructor
+  private static class Manifest {
+    final String batchId;
+    final String completedAt;
+    final List<CompletionNotifier.Completion> requests;
+  }
+
+  /**
+   * @param parallelism number of outcomes read at a time.
+   */
+  ManifestAggregator(@NonNull final S3Client s3Client,
+                     @NonNull final CompletionNotifier completionNotifier,
+                     final int parallelism) {
+    this.s3Client = s3Client;
+    this.completionNotifier = completionNotifier;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * @return aggregator using the default clients and the configuration from the environment.
+   */
+  static ManifestAggregator fromEnvironment() {
+    val completionEventBus = System.getenv("completionEventBus");
+    return new ManifestAggregator(
+            S3Client.create(),
+            completionEventBus == null || completionEventBus.isBlank()
+                    ? CompletionNotifier.NONE
+                    : new EventBridgeCompletionNotifier(EventBridgeClient.create(), completionEventBus),
+            DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * @param uploadPrefix everything but the name of the CSR, i.e. {@code <PAI_ARN or pool>/<pid>}.
+   * @return key the outcome of the CSR is recorded under.
+   */
+  static String completionKey(@NonNull final String uploadPrefix, @NonNull final String batchId, @NonNull final String name) {
+    return uploadPrefix + '/' + MANIFEST_DIR + '/' + batchId + '/' + name + COMPLETION_SUFFIX;
+  }
+
+  /**
+   * Writes and publishes the manifest of the batch the outcome belongs to, if the batch is complete.
+   *
+   * @param completionKey recorded outcome, not URL-encoded.
+   * @return whether the manifest has been written by this call.
+   * @throws RuntimeException if the outcomes couldn't be listed or read, or the manifest couldn't be written, so the call should
+   *                          be retried.
+   */
+  boolean aggregate(@NonNull final String bucket, @NonNull final String completionKey, @NonNull final StructuredLogger.Batch log) {
+    val keyParts = completionKey.split("/");
+    if (keyParts.length != 6 || !keyParts[3].equals(MANIFEST_DIR) || !keyParts[5].endsWith(COMPLETION_SUFFIX)) {
+      log.audit("completionSkipped", "Unexpected key " + completionKey + ", should be <PAI_ARN or pool>/<pid>/" + MANIFEST_DIR +
+                "/<batch_id>/<name>" + COMPLETION_SUFFIX, fields("bucket", bucket, "key", completionKey));
+      return false;
+    }
+
+    val batchId = keyParts[4];
+    val batchDir = completionKey.substring(0, completionKey.lastIndexOf('/'));
+    val manifestKey = batchDir + ".json";
+    final int batchSize;
+    try {
+      batchSize = Integer.parseInt(s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(completionKey).build())
+              .metadata().get(DacIssuer.BATCH_SIZE_METADATA));
+    } catch (NoSuchKeyException | NumberFormatException ex) {
+      log.error("completionSkipped", "Couldn't read the batch size of " + bucket + '/' + completionKey, ex,
+                fields("bucket", bucket, "key", completionKey, "batchId", batchId));
+      return false;
+    }
+
+    val completionKeys = listKeys(bucket, batchDir + '/').stream()
+            .filter(key -> key.endsWith(COMPLETION_SUFFIX))
+            .collect(Collectors.toList());
+    // The rest of the batch is still in progress, or someone else has seen it complete already.
+    if (completionKeys.size() < batchSize || exists(bucket, manifestKey)) {
+      log.info("batchInProgress", "Found " + completionKeys.size() + " of " + batchSize + " outcome(s) of batch " + batchId,
+               fields("bucket", bucket, "batchId", batchId, "count", completionKeys.size(), "size", batchSize));
+      return false;
+    }
+
+    val manifest = new Manifest(batchId, Instant.now().toString(), readCompletions(bucket, completionKeys));
+    s3Client.putObject(PutObjectRequest.builder().bucket(bucket).key(manifestKey).build(),
+                       RequestBody.fromString(gson.toJson(manifest)));
+    log.audit("manifestStored", "Stored manifest " + bucket + '/' + manifestKey + " of " + manifest.requests.size() + " CSR(s)",
+              fields("bucket", bucket, "key", manifestKey, "batchId", batchId, "count", manifest.requests.size()));
+
+    // The manifest is there anyway, and retrying would find it, so a failure here is only logged.
+    try {
+      completionNotifier.publish(bucket, manifestKey, batchId, manifest.requests);
+    } catch (RuntimeException ex) {
+      log.error("completionNotPublished", "Couldn't publish completion of batch " + batchId, ex,
+                fields("bucket", bucket, "manifestKey", manifestKey, "batchId", batchId));
+    }
+    return true;
+  }
+
+  private List<CompletionNotifier.Completion> readCompletions(@NonNull final String bucket, @NonNull final List<String> keys) {
+    val executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      val futures = new ArrayList<Future<CompletionNotifier.Completion>>(keys.size());
+      for (val key : keys) {
+        futures.add(executor.submit(() -> {
+          try (val result = s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build())) {
+            return gson.fromJson(new String(result.readAllBytes(), StandardCharsets.UTF_8), CompletionNotifier.Completion.class);
+          } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't read object " + bucket + '/' + key, ex);
+          }
+        }));
+      }
+
+      val completions = new ArrayList<CompletionNotifier.Completion>(keys.size());
+      for (val future : futures) {
+        completions.add(future.get());
+      }
+      return completions;
+    } catch (ExecutionException ex) {
+      throw ex.getCause() instanceof RuntimeException
+              ? (RuntimeException) ex.getCause()
+              : new RuntimeException("Couldn't read the outcomes in " + bucket, ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while reading the outcomes in " + bucket, ex);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<String> listKeys(@NonNull final String bucket, @NonNull final String prefix) {
+    val keys = new ArrayList<String>();
+    String continuationToken = null;
+    do {
+      val page = s3Client.listObjectsV2(ListObjectsV2Request.builder()
+              .bucket(bucket)
+              .prefix(prefix)
+              .continuationToken(continuationToken)
+              .build());
+      page.contents().stream().map(S3Object::key).forEach(keys::add);
+      continuationToken = Boolean.TRUE.equals(page.isTruncated()) ? page.nextContinuationToken() : null;
+    } while (continuationToken != null);
+    return keys;
+  }
+
+  private boolean exists(@NonNull final String bucket, @NonNull final String key) {
+    try {
+      s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+      return true;
+    } catch (NoSuchKeyException ex) {
+      return false;
+    }
+  }
+}
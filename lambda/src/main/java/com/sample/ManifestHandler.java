@@ -0,0 +1,48 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import lombok.NonNull;
+import lombok.val;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handler of the Lambda Function triggered as the outcomes of the CSRs of client batches are recorded, which writes and publishes
+ * the manifest of each batch once it's complete (see {@link ManifestAggregator}). A failure is thrown, so Lambda retries the
+ * asynchronous invocation.
+ */
+public class ManifestHandler implements RequestHandler<S3Event, Void> {
+
+  private final ManifestAggregator aggregator;
+  private final StructuredLogger structuredLogger = new StructuredLogger();
+
+  public ManifestHandler() {
+    this(ManifestAggregator.fromEnvironment());
+  }
+
+  ManifestHandler(@NonNull final ManifestAggregator aggregator) {
+    this.aggregator = aggregator;
+  }
+
+  @Override
+  public Void handleRequest(S3Event event, Context context) {
+    final LambdaLogger logger = context.getLogger();
+    try (final StructuredLogger.Batch log = structuredLogger.open(logger::log)) {
+      for (val record : event.getRecords()) {
+        // Need to get URL mangling out of our way.
+        aggregator.aggregate(record.getS3().getBucket().getName(),
+                             URLDecoder.decode(record.getS3().getObject().getKey(), StandardCharsets.UTF_8), log);
+      }
+    }
+    return null;
+  }
+}
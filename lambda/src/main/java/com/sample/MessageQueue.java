@@ -0,0 +1,45 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The part of SQS the {@link SqsWorker} relies on, so it can be exercised against an in-memory stand-in.
+ */
+interface MessageQueue {
+
+  @AllArgsConstructor
+  class Message {
+    public final String messageId;
+    public final String receiptHandle;
+    public final String body;
+    /** How many times the message has been received, including this time, or 0 if unknown. */
+    public final int receiveCount;
+  }
+
+  /**
+   * Waits up to {@code waitTime} for messages to become available, the received messages are hidden from other receivers for the
+   * queue's visibility timeout.
+   *
+   * @return received messages, possibly none.
+   */
+  List<Message> receive(int maxMessages, @NonNull Duration waitTime);
+
+  /**
+   * Removes the processed message from the queue.
+   */
+  void delete(@NonNull Message message);
+
+  /**
+   * Keeps the message hidden from other receivers for {@code timeout} starting from now.
+   */
+  void changeVisibility(@NonNull Message message, @NonNull Duration timeout);
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import lombok.NonNull;
+import lombok.val;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Routes requests addressed to a PAI pool (a set of PAIs with the same VID/PID, possibly in several regions) to one of its members,
+ * so a single product's throughput isn't capped by the per-CA {@code IssueCertificate} quota.
+ * <p>
+ * Pools are configured by the {@code paiPools} environment variable holding a JSON object, which maps pool names to the ARNs of
+ * their PAIs, e.g. {@code {"light": ["arn:aws:acm-pca:us-east-1:...", "arn:aws:acm-pca:us-west-2:..."]}}. The member expected to
+ * serve the request the fastest is picked, based on the latencies and throttles observed so far and on the number of requests
+ * already routed to it but not completed yet. The statistics live as long as the Lambda's execution environment.
+ * <p>
+ * Since a request may end up with any member of its pool, the members must agree on VID/PID; see
+ * {@link #checkMembers(Function)}.
+ */
+class PaiPoolRouter {
+
+  /** Used as the latency of a member until its first request completes. */
+  static final long DEFAULT_LATENCY_MILLIS = 2_000L;
+  /** Added to a member's score each time it throttles or fails, halves with each of its successful requests. */
+  static final long UNHEALTHY_PENALTY_MILLIS = 10_000L;
+  /** Weight of the most recent latency in the moving average. */
+  static final double LATENCY_SMOOTHING = 0.3;
+  static final String VID_OID = "1.3.6.1.4.1.37244.2.1";
+  static final String PID_OID = "1.3.6.1.4.1.37244.2.2";
+
+  private static class Member {
+    final String paiArn;
+    double latencyMillis = DEFAULT_LATENCY_MILLIS;
+    double penaltyMillis = 0;
+    int inFlight = 0;
+
+    Member(@NonNull final String paiArn) {
+      this.paiArn = paiArn;
+    }
+
+    double score() {
+      return (latencyMillis + penaltyMillis) * (1 + inFlight);
+    }
+  }
+
+  private final Map<String, List<Member>> pools;
+
+  PaiPoolRouter(@NonNull final Map<String, List<String>> pools) {
+    this.pools = pools.entrySet().stream().collect(Collectors.toMap(
+            Map.Entry::getKey,
+            pool -> pool.getValue().stream().map(Member::new).collect(Collectors.toList())));
+  }
+
+  /**
+   * @param json JSON object mapping pool names to lists of PAI ARNs, may be {@code null} (or {@code "null"}) if no pools are
+   *             configured.
+   * @throws IllegalArgumentException if the configuration can't be parsed, or if a pool has no members or a {@code null} one.
+   */
+  static PaiPoolRouter fromJson(final String json) {
+    if (json == null || json.isBlank()) {
+      return new PaiPoolRouter(Map.of());
+    }
+
+    final Map<String, List<String>> pools;
+    try {
+      pools = new Gson().fromJson(json, new TypeToken<Map<String, List<String>>>() {}.getType());
+    } catch (JsonParseException ex) {
+      throw new IllegalArgumentException("Invalid PAI pools configuration " + json, ex);
+    }
+    if (pools == null) {
+      return new PaiPoolRouter(Map.of());
+    }
+
+    for (val pool : pools.entrySet()) {
+      if (pool.getValue() == null || pool.getValue().isEmpty() || pool.getValue().contains(null)) {
+        throw new IllegalArgumentException("Invalid PAI pools configuration " + json + ", pool " + pool.getKey() +
+                                           " should list the ARNs of its PAIs");
+      }
+    }
+    return new PaiPoolRouter(pools);
+  }
+
+  /**
+   * Checks that the members of each pool have the same VID and the same PID, or none of them has a PID.
+   *
+   * @param paiSubjects maps the ARN of a PAI to the items of its subject, keyed by their OIDs.
+   * @throws IllegalArgumentException if the members of a pool differ.
+   */
+  void checkMembers(@NonNull final Function<String, Map<String, String>> paiSubjects) {
+    for (val pool : pools.entrySet()) {
+      String firstArn = null;
+      List<String> firstVidPid = null;
+      for (val member : pool.getValue()) {
+        val subject = paiSubjects.apply(member.paiArn);
+        val vidPid = Arrays.asList(subject.get(VID_OID), subject.get(PID_OID));
+        if (firstVidPid == null) {
+          firstArn = member.paiArn;
+          firstVidPid = vidPid;
+        } else if (!firstVidPid.equals(vidPid)) {
+          throw new IllegalArgumentException("Invalid PAI pools configuration, PAIs of pool " + pool.getKey() +
+                                             " should have the same VID/PID, while " + firstArn + " has " + firstVidPid +
+                                             " and " + member.paiArn + " has " + vidPid);
+        }
+      }
+    }
+  }
+
+  /**
+   * Picks the member of the pool to sign the next request. Each successful call must be followed by
+   * {@link #release(String, String, long, boolean)} once the request is over.
+   *
+   * @param pool name of the pool.
+   * @return ARN of the PAI to sign the request with.
+   * @throws IllegalArgumentException if the pool isn't configured.
+   */
+  synchronized @NonNull String acquire(@NonNull final String pool) {
+    val member = Optional.ofNullable(pools.get(pool)).orElse(List.of()).stream()
+            .min(Comparator.comparingDouble(Member::score))
+            .orElseThrow(() -> new IllegalArgumentException("Unknown or empty PAI pool " + pool));
+    ++member.inFlight;
+    return member.paiArn;
+  }
+
+  /**
+   * Records the outcome of a request routed by {@link #acquire(String)}.
+   *
+   * @param pool          name of the pool.
+   * @param paiArn        ARN of the PAI the request was routed to.
+   * @param latencyMillis time it took to process the request.
+   * @param healthy       {@code false} if PAI throttled the request or couldn't be reached.
+   */
+  synchronized void release(@NonNull final String pool, @NonNull final String paiArn, final long latencyMillis, final boolean healthy) {
+    findMember(pool, paiArn).ifPresent(member -> {
+      member.inFlight = Math.max(0, member.inFlight - 1);
+      if (healthy) {
+        member.latencyMillis = LATENCY_SMOOTHING * latencyMillis + (1 - LATENCY_SMOOTHING) * member.latencyMillis;
+        member.penaltyMillis /= 2;
+      } else {
+        member.penaltyMillis += UNHEALTHY_PENALTY_MILLIS;
+      }
+    });
+  }
+
+  /**
+   * Forgets a request routed by {@link #acquire(String)} which was never started.
+   *
+   * @param pool   name of the pool.
+   * @param paiArn ARN of the PAI the request was routed to.
+   */
+  synchronized void cancel(@NonNull final String pool, @NonNull final String paiArn) {
+    findMember(pool, paiArn).ifPresent(member -> member.inFlight = Math.max(0, member.inFlight - 1));
+  }
+
+  private Optional<Member> findMember(@NonNull final String pool, @NonNull final String paiArn) {
+    return pools.getOrDefault(pool, List.of()).stream().filter(member -> member.paiArn.equals(paiArn)).findFirst();
+  }
+}
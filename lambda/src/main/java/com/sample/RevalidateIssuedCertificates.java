@@ -0,0 +1,279 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.val;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.acmpca.AcmPcaClient;
+import software.amazon.awssdk.services.acmpca.model.GetCertificateAuthorityCertificateRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Re-validates the DACs already issued into the bucket, e.g. after a PAA or PAI rotation or a {@code chip-cert} upgrade, using the
+ * same {@code chip-cert} chain validation the {@link DacIssuer} does.
+ * <p>
+ * The bucket listing is streamed page by page, and the certificates of a page are validated by a pool of workers, so the memory
+ * footprint doesn't depend on the number of objects. Once a page is done, its failures are appended to {@value #FAILURES_FILE} and
+ * the progress is checkpointed to {@value #SUMMARY_FILE}, along with the number of certificates per
+ * {@link AttestationVerificationResult}. Running the job again with the same output directory resumes it from the last
+ * checkpoint, discarding the failures appended after it.
+ * <p>
+ * Usage: {@code RevalidateIssuedCertificates <bucket> <output_dir> [<key_prefix> [<parallelism>]]}
+ */
+public class RevalidateIssuedCertificates {
+
+  static final String SUMMARY_FILE = "summary.json";
+  static final String FAILURES_FILE = "failures.jsonl";
+  static final int DEFAULT_PARALLELISM = 16;
+
+  /**
+   * Progress of the job, which is also its checkpoint.
+   */
+  static class Summary {
+    String bucket;
+    String prefix;
+    /** The last key which has been validated, along with all the keys before it. */
+    String startAfter;
+    long checked;
+    /** Size of {@value #FAILURES_FILE} as of the checkpoint. */
+    long failuresFileSize;
+    Map<String, Long> results = new TreeMap<>();
+    boolean completed;
+  }
+
+  @AllArgsConstructor
+  private static class Failure {
+    final String key;
+    final String paiArn;
+    final String result;
+    final String message;
+  }
+
+  @AllArgsConstructor
+  private static class PaiCertificates {
+    final String paaPem;
+    final String paiPem;
+  }
+
+  private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+  private final S3Client s3Client;
+  private final Function<String, AcmPcaClient> pcaClients;
+  private final Supplier<ChipCertValidator> validators;
+  private final int parallelism;
+  private final Path outputDir;
+  private final Map<String, PaiCertificates> paiCache = new ConcurrentHashMap<>();
+
+  /**
+   * @param pcaClients returns the client to obtain the PAI with the given ARN from.
+   * @param validators returns the validator of the calling worker, see {@link ChipCertValidator#perThread(String)}.
+   */
+  RevalidateIssuedCertificates(@NonNull final S3Client s3Client,
+                               @NonNull final Function<String, AcmPcaClient> pcaClients,
+                               @NonNull final Supplier<ChipCertValidator> validators,
+                               final int parallelism,
+                               @NonNull final Path outputDir) {
+    this.s3Client = s3Client;
+    this.pcaClients = pcaClients;
+    this.validators = validators;
+    this.parallelism = parallelism;
+    this.outputDir = outputDir;
+  }
+
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    if (args.length < 2) {
+      System.err.println("Usage: RevalidateIssuedCertificates <bucket> <output_dir> [<key_prefix> [<parallelism>]]");
+      System.exit(1);
+    }
+
+    val credentialsProvider = DefaultCredentialsProvider.create();
+    val pcaClient = AcmPcaClient.builder().credentialsProvider(credentialsProvider).build();
+    val regionalClients = new ConcurrentHashMap<String, AcmPcaClient>();
+    final Function<String, AcmPcaClient> pcaClients = arn -> DacIssuer.foreignRegionOf(arn)
+            .map(region -> regionalClients.computeIfAbsent(region, r -> AcmPcaClient.builder()
+                    .credentialsProvider(credentialsProvider)
+                    .region(Region.of(r))
+                    .build()))
+            .orElse(pcaClient);
+    val job = new RevalidateIssuedCertificates(S3Client.create(), pcaClients, ChipCertValidator.perThread("revalidate"),
+            args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PARALLELISM, Path.of(args[1]));
+    val summary = job.run(args[0], args.length > 2 ? args[2] : "");
+    System.out.println("Checked " + summary.checked + " certificate(s): " + summary.results);
+  }
+
+  /**
+   * Validates all the {@code .pem} objects under the prefix, resuming from the checkpoint in the output directory if there is one.
+   *
+   * @return the final summary, also stored in the output directory.
+   */
+  Summary run(@NonNull final String bucket, @NonNull final String prefix) throws IOException, InterruptedException {
+    Files.createDirectories(outputDir);
+    val summary = loadSummary(bucket, prefix);
+    if (summary.completed) {
+      return summary;
+    }
+    truncateFailures(summary.failuresFileSize);
+
+    val executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      String continuationToken = null;
+      do {
+        val page = s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .startAfter(continuationToken == null ? summary.startAfter : null)
+                .continuationToken(continuationToken)
+                .build());
+
+        processPage(bucket, page.contents(), summary, executor);
+        continuationToken = page.isTruncated() ? page.nextContinuationToken() : null;
+      } while (continuationToken != null);
+
+      summary.completed = true;
+      storeSummary(summary);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return summary;
+  }
+
+  private void processPage(@NonNull final String bucket,
+                           @NonNull final List<S3Object> objects,
+                           @NonNull final Summary summary,
+                           @NonNull final ExecutorService executor) throws IOException, InterruptedException {
+    if (objects.isEmpty()) {
+      return;
+    }
+
+    final List<Callable<Failure>> tasks = objects.stream()
+            .map(S3Object::key)
+            .filter(key -> key.endsWith(".pem"))
+            .map(key -> (Callable<Failure>) () -> validate(bucket, key))
+            .collect(Collectors.toList());
+
+    val failures = new ArrayList<Failure>();
+    for (val future : executor.invokeAll(tasks)) {
+      final Failure failure;
+      try {
+        failure = future.get();
+      } catch (ExecutionException ex) {
+        throw new IllegalStateException("Validation task failed unexpectedly", ex.getCause());
+      }
+
+      ++summary.checked;
+      summary.results.merge(failure == null ? AttestationVerificationResult.kSuccess.name() : failure.result, 1L, Long::sum);
+      if (failure != null) {
+        failures.add(failure);
+      }
+    }
+
+    if (!failures.isEmpty()) {
+      val failuresFile = outputDir.resolve(FAILURES_FILE);
+      Files.writeString(failuresFile,
+              failures.stream().map(gson::toJson).collect(Collectors.joining("\n", "", "\n")),
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      summary.failuresFileSize = Files.size(failuresFile);
+    }
+    summary.startAfter = objects.get(objects.size() - 1).key();
+    storeSummary(summary);
+  }
+
+  /**
+   * @return {@code null} if the certificate is valid, the failure otherwise.
+   */
+  private Failure validate(@NonNull final String bucket, @NonNull final String key) throws InterruptedException {
+    String paiArn = null;
+    try {
+      val object = s3Client.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).build());
+      val s3Key = new DacIssuer.S3Structure(key);
+      paiArn = object.response().metadata().get(DacIssuer.PAI_ARN_METADATA);
+      if (paiArn == null) {
+        if (s3Key.pool != null) {
+          throw new IllegalArgumentException("Unknown PAI for " + key + ", as it was signed with pool " + s3Key.pool);
+        }
+        paiArn = s3Key.prefix;
+      }
+
+      val pai = paiCache.computeIfAbsent(paiArn, this::obtainPai);
+      validators.get().validate(pai.paaPem, pai.paiPem, object.asString(StandardCharsets.UTF_8));
+      return null;
+    } catch (ChipCertValidator.ValidationException ex) {
+      return new Failure(key, paiArn, ex.result.name(), ex.getMessage());
+    } catch (IOException | RuntimeException ex) {
+      return new Failure(key, paiArn, AttestationVerificationResult.kInternalError.name(), ex.toString());
+    }
+  }
+
+  private PaiCertificates obtainPai(@NonNull final String paiArn) {
+    val pai = pcaClients.apply(paiArn).getCertificateAuthorityCertificate(GetCertificateAuthorityCertificateRequest.builder()
+            .certificateAuthorityArn(paiArn)
+            .build());
+    return new PaiCertificates(pai.certificateChain(), pai.certificate());
+  }
+
+  private Summary loadSummary(@NonNull final String bucket, @NonNull final String prefix) throws IOException {
+    val summaryFile = outputDir.resolve(SUMMARY_FILE);
+    if (Files.exists(summaryFile)) {
+      val summary = gson.fromJson(Files.readString(summaryFile), Summary.class);
+      if (!bucket.equals(summary.bucket) || !prefix.equals(summary.prefix)) {
+        throw new IllegalArgumentException("Checkpoint in " + outputDir + " belongs to " + summary.bucket + '/' + summary.prefix);
+      }
+      return summary;
+    }
+
+    val summary = new Summary();
+    summary.bucket = bucket;
+    summary.prefix = prefix;
+    return summary;
+  }
+
+  /**
+   * Drops the failures of a page which was interrupted before its checkpoint, as the page is going to be processed again.
+   */
+  private void truncateFailures(final long size) throws IOException {
+    val failuresFile = outputDir.resolve(FAILURES_FILE);
+    if (Files.exists(failuresFile) && Files.size(failuresFile) > size) {
+      try (val channel = FileChannel.open(failuresFile, StandardOpenOption.WRITE)) {
+        channel.truncate(size);
+      }
+    }
+  }
+
+  private void storeSummary(@NonNull final Summary summary) throws IOException {
+    // Replace the checkpoint atomically, so an interruption never leaves a partially written one behind.
+    val tmpFile = outputDir.resolve(SUMMARY_FILE + ".tmp");
+    Files.writeString(tmpFile, gson.toJson(summary));
+    Files.move(tmpFile, outputDir.resolve(SUMMARY_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * {@link MessageQueue} backed by an SQS queue.
+ */
+@AllArgsConstructor
+class SqsMessageQueue implements MessageQueue {
+
+  /** SQS doesn't allow to receive more messages at once. */
+  static final int MAX_MESSAGES = 10;
+  /** SQS doesn't allow to long poll longer. */
+  static final Duration MAX_WAIT_TIME = Duration.ofSeconds(20);
+
+  private final SqsClient sqsClient;
+  private final String queueUrl;
+
+  @Override
+  public List<Message> receive(final int maxMessages, @NonNull final Duration waitTime) {
+    final ReceiveMessageRequest req = ReceiveMessageRequest.builder()
+            .queueUrl(queueUrl)
+            .maxNumberOfMessages(Math.min(maxMessages, MAX_MESSAGES))
+            .waitTimeSeconds((int) Math.min(waitTime.toSeconds(), MAX_WAIT_TIME.toSeconds()))
+            .attributeNamesWithStrings(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT.toString())
+            .build();
+    return sqsClient.receiveMessage(req).messages().stream()
+            .map(message -> new Message(message.messageId(), message.receiptHandle(), message.body(),
+                    Integer.parseInt(message.attributes().getOrDefault(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT, "0"))))
+            .collect(Collectors.toList());
+  }
+
+  @Override
+  public void delete(@NonNull final Message message) {
+    sqsClient.deleteMessage(DeleteMessageRequest.builder()
+            .queueUrl(queueUrl)
+            .receiptHandle(message.receiptHandle)
+            .build());
+  }
+
+  @Override
+  public void changeVisibility(@NonNull final Message message, @NonNull final Duration timeout) {
+    sqsClient.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+            .queueUrl(queueUrl)
+            .receiptHandle(message.receiptHandle)
+            .visibilityTimeout((int) timeout.toSeconds())
+            .build());
+  }
+}
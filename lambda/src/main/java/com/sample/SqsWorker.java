@@ -0,0 +1,250 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.NonNull;
+import lombok.val;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.sample.StructuredLogger.fields;
+
+/**
+ * Long-running alternative to the Lambda {@link Handler} for sustained factory load, which avoids per-invocation overheads like
+ * cold starts and the fixed batch size. Several receivers long-poll the queue and hand the received batches over to a bounded pool
+ * of workers running the same {@link DacIssuer} as the Lambda does, so the behavior is the same:
+ * <ul>
+ *   <li>messages of a batch which were processed, successfully or not, are deleted;</li>
+ *   <li>messages reported as failed are left alone, so SQS redelivers them once their visibility timeout expires, moving them to
+ *   the dead-letter queue after too many attempts;</li>
+ *   <li>while a batch is being processed its visibility timeout is extended periodically, so it isn't redelivered meanwhile.</li>
+ * </ul>
+ * Receivers only poll the queue while there is a worker available, so received messages never wait in memory for a worker.
+ * <p>
+ * Unlike the Lambda, whose reserved concurrency keeps it within the account's PCA {@code IssueCertificate} quota, the worker's
+ * throughput grows with its receivers and workers, so the issuance is throttled to {@code issueCertificateMaxTps} (the same budget
+ * the Lambda's concurrency is sized for by default) by a {@link RateLimiter} shared by all the workers.
+ * <p>
+ * Configured with the environment variables {@code queueUrl}, {@code workerReceivers}, {@code workerThreads},
+ * {@code visibilityTimeoutSeconds} and {@code issueCertificateMaxTps}, on top of the ones used by {@link DacIssuer}.
+ */
+public class SqsWorker {
+
+  static final int DEFAULT_RECEIVERS = 4;
+  static final int DEFAULT_WORKERS = 16;
+  static final Duration DEFAULT_VISIBILITY_TIMEOUT = Duration.ofMinutes(6);
+  /** PCA's default {@code IssueCertificate} quota, as used to size the Lambda's reserved concurrency. */
+  static final double DEFAULT_ISSUE_CERTIFICATE_MAX_TPS = 25;
+  /** Time a batch may take, the same as the longest Lambda invocation; its visibility is extended meanwhile. */
+  static final Duration BATCH_TIME_BUDGET = Duration.ofMinutes(15);
+  /** Pause after a failed receive, so an unavailable queue isn't hammered. */
+  static final Duration RECEIVE_RETRY_DELAY = Duration.ofSeconds(1);
+
+  private final MessageQueue queue;
+  private final DacIssuer dacIssuer;
+  private final StructuredLogger structuredLogger = new StructuredLogger();
+  private final Consumer<String> sink;
+  private final int receivers;
+  private final Duration visibilityTimeout;
+  private final Duration waitTime;
+  private final ExecutorService workers;
+  private final Semaphore idleWorkers;
+  private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+  private final List<Thread> receiverThreads = new ArrayList<>();
+  private volatile boolean running = false;
+
+  /**
+   * @param sink              where the logs are written to.
+   * @param receivers         number of threads polling the queue.
+   * @param workers           number of batches processed at a time.
+   * @param visibilityTimeout visibility timeout of the received messages, extended every half of it while they're processed.
+   * @param waitTime          how long a receiver waits for messages during a single poll.
+   */
+  SqsWorker(@NonNull final MessageQueue queue,
+            @NonNull final DacIssuer dacIssuer,
+            @NonNull final Consumer<String> sink,
+            final int receivers,
+            final int workers,
+            @NonNull final Duration visibilityTimeout,
+            @NonNull final Duration waitTime) {
+    this.queue = queue;
+    this.dacIssuer = dacIssuer;
+    this.sink = sink;
+    this.receivers = receivers;
+    this.visibilityTimeout = visibilityTimeout;
+    this.waitTime = waitTime;
+    this.workers = Executors.newFixedThreadPool(workers);
+    this.idleWorkers = new Semaphore(workers);
+  }
+
+  public static void main(final String[] args) throws InterruptedException {
+    val queueUrl = Optional.ofNullable(System.getenv("queueUrl"))
+            .orElseThrow(() -> new IllegalArgumentException("queueUrl environment variable should be set"));
+    val workers = Integer.parseInt(Optional.ofNullable(System.getenv("workerThreads")).orElse(String.valueOf(DEFAULT_WORKERS)));
+    val receivers = Integer.parseInt(Optional.ofNullable(System.getenv("workerReceivers")).orElse(String.valueOf(DEFAULT_RECEIVERS)));
+    val visibilityTimeout = Optional.ofNullable(System.getenv("visibilityTimeoutSeconds"))
+            .map(seconds -> Duration.ofSeconds(Long.parseLong(seconds)))
+            .orElse(DEFAULT_VISIBILITY_TIMEOUT);
+    val issueCertificateMaxTps = Optional.ofNullable(System.getenv("issueCertificateMaxTps"))
+            .map(Double::parseDouble)
+            .orElse(DEFAULT_ISSUE_CERTIFICATE_MAX_TPS);
+
+    // Each worker thread gets its own set of files for chip-cert.
+    val worker = new SqsWorker(new SqsMessageQueue(SqsClient.create(), queueUrl),
+            DacIssuer.fromEnvironment(ChipCertValidator.perThread("dac"), RateLimiter.create(issueCertificateMaxTps)),
+            System.out::println, receivers, workers, visibilityTimeout, SqsMessageQueue.MAX_WAIT_TIME);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        worker.stop();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+    worker.start();
+    worker.awaitTermination();
+  }
+
+  synchronized void start() {
+    if (running) {
+      return;
+    }
+
+    running = true;
+    for (int i = 0; i < receivers; ++i) {
+      val thread = new Thread(this::receiveLoop, "receiver-" + i);
+      receiverThreads.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops polling the queue and waits for the batches being processed to complete.
+   */
+  synchronized void stop() throws InterruptedException {
+    running = false;
+    for (val thread : receiverThreads) {
+      thread.join();
+    }
+    receiverThreads.clear();
+
+    workers.shutdown();
+    workers.awaitTermination(BATCH_TIME_BUDGET.toMillis(), TimeUnit.MILLISECONDS);
+    heartbeats.shutdownNow();
+  }
+
+  void awaitTermination() throws InterruptedException {
+    while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+      // Keep waiting.
+    }
+  }
+
+  private void receiveLoop() {
+    while (running) {
+      try {
+        idleWorkers.acquire();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      // stop() may have come while waiting for a worker, in which case nobody would process what we'd receive.
+      if (!running) {
+        idleWorkers.release();
+        return;
+      }
+
+      final List<MessageQueue.Message> batch;
+      try {
+        batch = queue.receive(SqsMessageQueue.MAX_MESSAGES, waitTime);
+      } catch (RuntimeException ex) {
+        idleWorkers.release();
+        try (final StructuredLogger.Batch log = structuredLogger.open(sink)) {
+          log.error("receiveFailed", "Couldn't receive messages", ex, fields());
+        }
+        sleep(RECEIVE_RETRY_DELAY);
+        continue;
+      }
+
+      if (batch.isEmpty()) {
+        idleWorkers.release();
+        continue;
+      }
+
+      workers.execute(() -> {
+        try {
+          processBatch(batch);
+        } finally {
+          idleWorkers.release();
+        }
+      });
+    }
+  }
+
+  private void processBatch(@NonNull final List<MessageQueue.Message> batch) {
+    val heartbeatPeriod = visibilityTimeout.toMillis() / 2;
+    val heartbeat = heartbeats.scheduleAtFixedRate(
+            () -> extendVisibility(batch), heartbeatPeriod, heartbeatPeriod, TimeUnit.MILLISECONDS);
+
+    try (final StructuredLogger.Batch log = structuredLogger.open(sink)) {
+      final Set<String> failedMessageIds;
+      try {
+        failedMessageIds = dacIssuer.process(
+                batch.stream().map(message -> new DacIssuer.Message(message.messageId, message.body, message.receiveCount)).collect(Collectors.toList()),
+                new TimeBudget(BATCH_TIME_BUDGET.toMillis()),
+                log);
+      } catch (RuntimeException ex) {
+        log.error("batchFailed", "Couldn't process " + batch.size() + " message(s), leaving them for redelivery", ex, fields());
+        return;
+      } finally {
+        heartbeat.cancel(false);
+      }
+
+      for (val message : batch) {
+        if (failedMessageIds.contains(message.messageId)) {
+          continue;
+        }
+        try {
+          queue.delete(message);
+        } catch (RuntimeException ex) {
+          log.error("deleteFailed", "Couldn't delete message " + message.messageId, ex, fields("messageId", message.messageId));
+        }
+      }
+    }
+  }
+
+  private void extendVisibility(@NonNull final List<MessageQueue.Message> batch) {
+    for (val message : batch) {
+      try {
+        queue.changeVisibility(message, visibilityTimeout);
+      } catch (RuntimeException ex) {
+        try (final StructuredLogger.Batch log = structuredLogger.open(sink)) {
+          log.error("visibilityNotExtended", "Couldn't extend visibility of message " + message.messageId, ex,
+                    fields("messageId", message.messageId));
+        }
+      }
+    }
+  }
+
+  private static void sleep(@NonNull final Duration duration) {
+    try {
+      Thread.sleep(duration.toMillis());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
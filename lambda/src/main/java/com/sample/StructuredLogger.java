@@ -0,0 +1,223 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import lombok.NonNull;
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Structured (JSON lines) logging for the handler, which keeps the log volume proportional to the useful information rather than
+ * to the number of failures:
+ * <ul>
+ *   <li>routine and audit entries are buffered per invocation (see {@link Batch}) and written once it's over, or earlier if the
+ *   bounded buffer fills up; an invocation killed before that loses at most a buffer's worth of them, while the DACs they report
+ *   are in S3 anyway;</li>
+ *   <li>an error entry is written right away along with the entries buffered before it, as errors are rare and the most useful
+ *   ones are those right before the invocation is killed;</li>
+ *   <li>each entry is a single JSON document written with its own call, so it's a log event of its own for Logs Insights and
+ *   metric filters;</li>
+ *   <li>a stack trace is written in full only the first time its fingerprint is seen, later entries just refer to the fingerprint
+ *   and keep the messages of the exception and of its root cause;</li>
+ *   <li>only every {@code sampleRate}-th routine {@link Batch#info} entry of each kind is kept, the rest is counted and summarized;</li>
+ *   <li>{@link Batch#audit} and {@link Batch#error} entries are always kept.</li>
+ * </ul>
+ * The fingerprints and sampling counters outlive a single invocation, so they keep working for the warm execution environment.
+ */
+class StructuredLogger {
+
+  static final int DEFAULT_SAMPLE_RATE = 10;
+  static final int DEFAULT_BUFFER_CAPACITY = 64;
+  static final int FINGERPRINT_CACHE_SIZE = 256;
+
+  private final int sampleRate;
+  private final int bufferCapacity;
+  private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+  private final Map<String, AtomicLong> sampleCounters = new ConcurrentHashMap<>();
+  private final Set<String> seenFingerprints = Collections.newSetFromMap(Collections.synchronizedMap(
+          new LinkedHashMap<String, Boolean>(FINGERPRINT_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+              return size() > FINGERPRINT_CACHE_SIZE;
+            }
+          }));
+
+  StructuredLogger() {
+    this(DEFAULT_SAMPLE_RATE, DEFAULT_BUFFER_CAPACITY);
+  }
+
+  StructuredLogger(final int sampleRate, final int bufferCapacity) {
+    if (sampleRate < 1 || bufferCapacity < 1) {
+      throw new IllegalArgumentException("Sample rate and buffer capacity should be positive");
+    }
+    this.sampleRate = sampleRate;
+    this.bufferCapacity = bufferCapacity;
+  }
+
+  /**
+   * @param sink where the entries are written to, one per call, e.g. {@code LambdaLogger::log}.
+   * @return buffer for the entries of a single invocation, which must be closed once the invocation is over.
+   */
+  Batch open(@NonNull final Consumer<String> sink) {
+    return new Batch(sink);
+  }
+
+  /**
+   * @param keyValues alternating keys and values, {@code null} values are allowed and omitted from the output.
+   * @return map of additional fields of a log entry.
+   */
+  static Map<String, Object> fields(@NonNull final Object... keyValues) {
+    if (keyValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Expected key/value pairs, got " + keyValues.length + " items");
+    }
+
+    val result = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      result.put(keyValues[i].toString(), keyValues[i + 1]);
+    }
+    return result;
+  }
+
+  /**
+   * @return fingerprint of the exception, which only depends on the types and stack traces of the exception and its causes, but
+   * not on their messages.
+   */
+  static String fingerprint(@NonNull final Throwable ex) {
+    val sb = new StringBuilder();
+    for (Throwable currEx = ex; currEx != null; currEx = currEx.getCause()) {
+      sb.append(currEx.getClass().getName());
+      sb.append(Arrays.toString(currEx.getStackTrace()));
+    }
+    return Hashing.murmur3_128().hashString(sb, StandardCharsets.UTF_8).toString().substring(0, 16);
+  }
+
+  private static Throwable rootCauseOf(@NonNull final Throwable ex) {
+    Throwable currEx = ex;
+    while (currEx.getCause() != null && currEx.getCause() != currEx) {
+      currEx = currEx.getCause();
+    }
+    return currEx;
+  }
+
+  static String printException(@NonNull final Throwable ex) {
+    val sb = new StringBuilder();
+    Throwable currEx = ex;
+    do {
+      sb.append(currEx);
+      sb.append("\n");
+      sb.append(Arrays.toString(currEx.getStackTrace()));
+      sb.append("\n");
+      currEx = currEx.getCause();
+    } while (currEx != null);
+
+    return sb.toString();
+  }
+
+  /**
+   * Entries of a single invocation. Not thread safe.
+   */
+  class Batch implements AutoCloseable {
+    private final Consumer<String> sink;
+    private final List<String> buffer = new ArrayList<>();
+    private final Map<String, Integer> suppressed = new TreeMap<>();
+
+    private Batch(@NonNull final Consumer<String> sink) {
+      this.sink = sink;
+    }
+
+    /**
+     * Routine entry, subject to sampling.
+     */
+    void info(@NonNull final String event, @NonNull final String message, @NonNull final Map<String, ?> fields) {
+      val count = sampleCounters.computeIfAbsent(event, e -> new AtomicLong()).getAndIncrement();
+      if (count % sampleRate != 0) {
+        suppressed.merge(event, 1, Integer::sum);
+        return;
+      }
+      append("INFO", event, message, fields, null);
+    }
+
+    /**
+     * Audit-relevant entry, never sampled or dropped.
+     */
+    void audit(@NonNull final String event, @NonNull final String message, @NonNull final Map<String, ?> fields) {
+      append("AUDIT", event, message, fields, null);
+    }
+
+    /**
+     * Failure, never sampled or dropped, with the stack trace written in full only for the first occurrence of its fingerprint.
+     * Written right away along with the entries buffered before it.
+     */
+    void error(@NonNull final String event,
+               @NonNull final String message,
+               final Throwable ex,
+               @NonNull final Map<String, ?> fields) {
+      append("ERROR", event, message, fields, ex);
+      flush();
+    }
+
+    private void append(@NonNull final String level,
+                        @NonNull final String event,
+                        @NonNull final String message,
+                        @NonNull final Map<String, ?> fields,
+                        final Throwable ex) {
+      val entry = new LinkedHashMap<String, Object>();
+      entry.put("level", level);
+      entry.put("event", event);
+      entry.put("message", message);
+      entry.putAll(fields);
+      if (ex != null) {
+        val fingerprint = fingerprint(ex);
+        entry.put("exception", ex.toString());
+        val rootCause = rootCauseOf(ex);
+        if (rootCause != ex) {
+          entry.put("rootCause", rootCause.toString());
+        }
+        entry.put("traceFingerprint", fingerprint);
+        if (seenFingerprints.add(fingerprint)) {
+          entry.put("trace", printException(ex));
+        }
+      }
+
+      buffer.add(gson.toJson(entry));
+      if (buffer.size() >= bufferCapacity) {
+        flush();
+      }
+    }
+
+    /**
+     * Writes the buffered entries, in order and one per call to the sink.
+     */
+    void flush() {
+      buffer.forEach(sink);
+      buffer.clear();
+    }
+
+    @Override
+    public void close() {
+      if (!suppressed.isEmpty()) {
+        append("INFO", "sampled", "Suppressed repetitive entries", fields("suppressed", new TreeMap<>(suppressed)));
+        suppressed.clear();
+      }
+      flush();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.NonNull;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the time left for the current invocation and predicts the cost of the next request from the latencies of the
+ * recently processed ones. This lets the handler stop picking up new requests while there is still enough time to report the
+ * unstarted ones back to SQS, instead of being killed by the Lambda's hard timeout in the middle of the batch.
+ */
+class TimeBudget {
+
+  /** Used as the prediction until the first request completes. */
+  static final long DEFAULT_ITEM_COST_MILLIS = 5_000L;
+  /** Reserved for reporting results back once the processing loop is over. */
+  static final long SAFETY_MARGIN_MILLIS = 2_000L;
+  /** Number of recent latencies the prediction is based on. */
+  static final int WINDOW_SIZE = 8;
+
+  private final LongSupplier clock;
+  private final long deadlineMillis;
+  private final Deque<Long> recentLatencies = new ArrayDeque<>(WINDOW_SIZE);
+
+  TimeBudget(final long remainingMillis) {
+    this(remainingMillis, System::currentTimeMillis);
+  }
+
+  TimeBudget(final long remainingMillis, @NonNull final LongSupplier clock) {
+    this.clock = clock;
+    this.deadlineMillis = clock.getAsLong() + remainingMillis - SAFETY_MARGIN_MILLIS;
+  }
+
+  /**
+   * @return current time in milliseconds, according to the clock of this budget.
+   */
+  long now() {
+    return clock.getAsLong();
+  }
+
+  /**
+   * @return time left before the deadline, never negative.
+   */
+  long remainingMillis() {
+    return Math.max(0L, deadlineMillis - clock.getAsLong());
+  }
+
+  /**
+   * @return point in time after which no work should be in progress anymore.
+   */
+  Instant deadline() {
+    return Instant.ofEpochMilli(deadlineMillis);
+  }
+
+  /**
+   * @return the expected cost of the next request; the slowest of the recent ones, so a single fast request doesn't make us
+   * overly optimistic when PCA is slow.
+   */
+  long predictedItemCostMillis() {
+    return recentLatencies.stream().mapToLong(Long::longValue).max().orElse(DEFAULT_ITEM_COST_MILLIS);
+  }
+
+  /**
+   * @param items number of requests we're about to start.
+   * @return whether the given number of requests is expected to complete before the deadline.
+   */
+  boolean canStart(final int items) {
+    return remainingMillis() >= predictedItemCostMillis() * items;
+  }
+
+  /**
+   * @param startMillis value of {@link #now()} taken when the request was started.
+   */
+  void recordItem(final long startMillis) {
+    if (recentLatencies.size() == WINDOW_SIZE) {
+      recentLatencies.removeFirst();
+    }
+    recentLatencies.addLast(Math.max(0L, clock.getAsLong() - startMillis));
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.events.S3BatchResponse;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class BackfillFromManifestTest {
+    private final S3Client s3Client = mock(S3Client.class);
+    private final CsrBackfill backfill = mock(CsrBackfill.class);
+    private String failingTaskId = null;
+    /** Number of times each task is still going to fail temporarily. */
+    private final Map<String, Integer> temporaryFailures = new HashMap<>();
+
+    private static final String csvManifest =
+            "bucket,arn%3Apca/PAIArn/1001/request+1.csr,v1\n" +
+            "\"bucket\",\"arn%3Apca/PAIArn/1001/request+2.csr\"\n" +
+            "bucket,arn%3Apca/PAIArn/1001/request+3.csr\n";
+
+    private static final String inventoryManifest = "{\n" +
+            "  \"sourceBucket\": \"bucket\",\n" +
+            "  \"destinationBucket\": \"arn:aws:s3:::inventory\",\n" +
+            "  \"fileFormat\": \"CSV\",\n" +
+            "  \"fileSchema\": \"Bucket, Key, VersionId, IsLatest, IsDeleteMarker, Size\",\n" +
+            "  \"files\": [{\"key\": \"data/1.csv\"}, {\"key\": \"data/2.csv\"}]\n" +
+            "}";
+
+    @TempDir
+    Path outputDir;
+
+    @SneakyThrows
+    @BeforeEach
+    void setUp() {
+        // Report every task as succeeded, unless it's the one to fail or it's still failing temporarily.
+        doAnswer(invocation -> {
+            final List<CsrBackfill.Task> tasks = invocation.getArgument(0);
+            if (tasks.stream().anyMatch(task -> task.taskId.equals(failingTaskId))) {
+                throw new IllegalStateException("Interrupted");
+            }
+            return tasks.stream().map(task -> {
+                val result = new S3BatchResponse.Result();
+                result.setTaskId(task.taskId);
+                result.setResultCode(temporaryFailures.getOrDefault(task.taskId, 0) > 0
+                        ? S3BatchResponse.ResultCode.TemporaryFailure
+                        : S3BatchResponse.ResultCode.Succeeded);
+                temporaryFailures.computeIfPresent(task.taskId, (taskId, count) -> count - 1);
+                return result;
+            }).collect(Collectors.toList());
+        }).when(backfill).run(anyList(), anyLong(), any());
+    }
+
+    private void mockObject(final String bucket, final String key, final String content) {
+        doAnswer(invocation -> new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                AbortableInputStream.create(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)))))
+                .when(s3Client).getObject(argThat((GetObjectRequest req) -> req != null &&
+                        req.bucket().equals(bucket) && req.key().equals(key)));
+    }
+
+    @SneakyThrows
+    @Test
+    void runCsvManifest() {
+        mockObject("manifests", "manifest.csv", csvManifest);
+        val job = new BackfillFromManifest(s3Client, backfill, 2, outputDir, line -> {});
+
+        val summary = job.run("manifests", "manifest.csv");
+        assertTrue(summary.completed);
+        assertEquals(3, summary.processed);
+        assertEquals(3L, summary.results.get("Succeeded"));
+
+        verify(backfill, times(1)).run(argThat((List<CsrBackfill.Task> tasks) -> tasks.size() == 2 &&
+                "v1".equals(tasks.get(0).versionId) &&
+                tasks.get(1).key.equals("arn%3Apca/PAIArn/1001/request+2.csr") && tasks.get(1).versionId == null),
+                anyLong(), any());
+        val results = Files.readAllLines(outputDir.resolve(BackfillFromManifest.RESULTS_FILE));
+        assertEquals(3, results.size());
+        assertTrue(results.get(2).contains("\"resultCode\":\"Succeeded\""));
+    }
+
+    @SneakyThrows
+    @Test
+    void runResumesFromCheckpoint() {
+        mockObject("manifests", "manifest.csv", csvManifest);
+        val job = new BackfillFromManifest(s3Client, backfill, 2, outputDir, line -> {});
+
+        // The job dies in the middle of the second chunk.
+        failingTaskId = "3";
+        assertThrows(IllegalStateException.class, () -> job.run("manifests", "manifest.csv"));
+        assertEquals(2, Files.readAllLines(outputDir.resolve(BackfillFromManifest.RESULTS_FILE)).size());
+
+        failingTaskId = null;
+        clearInvocations(backfill);
+        val summary = job.run("manifests", "manifest.csv");
+        assertTrue(summary.completed);
+        assertEquals(3L, summary.results.get("Succeeded"));
+        // Only the last row is processed again.
+        verify(backfill, times(1)).run(argThat((List<CsrBackfill.Task> tasks) -> tasks.size() == 1 &&
+                tasks.get(0).taskId.equals("3")), anyLong(), any());
+        assertEquals(3, Files.readAllLines(outputDir.resolve(BackfillFromManifest.RESULTS_FILE)).size());
+    }
+
+    @SneakyThrows
+    @Test
+    void runResumesAfterCrashBeforeCheckpoint() {
+        mockObject("manifests", "manifest.csv", csvManifest);
+        val job = new BackfillFromManifest(s3Client, backfill, 2, outputDir, line -> {});
+
+        failingTaskId = "3";
+        assertThrows(IllegalStateException.class, () -> job.run("manifests", "manifest.csv"));
+        // The job dies between appending the results of the second chunk and checkpointing it.
+        val resultsFile = outputDir.resolve(BackfillFromManifest.RESULTS_FILE);
+        Files.writeString(resultsFile, "{\"taskId\":\"3\",\"resultCode\":\"Succeeded\"}\n", StandardOpenOption.APPEND);
+
+        failingTaskId = null;
+        val summary = job.run("manifests", "manifest.csv");
+        assertEquals(3L, summary.results.get("Succeeded"));
+        val results = Files.readAllLines(resultsFile);
+        assertEquals(3, results.size());
+        assertEquals(1, results.stream().filter(result -> result.contains("\"taskId\":\"3\"")).count());
+        assertEquals(Files.size(resultsFile), summary.resultsFileSize);
+    }
+
+    @SneakyThrows
+    @Test
+    void runInventoryManifest() {
+        doReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(),
+                inventoryManifest.getBytes(StandardCharsets.UTF_8)))
+                .when(s3Client).getObjectAsBytes(any(GetObjectRequest.class));
+        mockObject("inventory", "data/1.csv",
+                "\"bucket\",\"arn%3Apca/PAIArn/1001/request+1.csr\",\"v2\",\"true\",\"false\",\"100\"\n" +
+                "\"bucket\",\"arn%3Apca/PAIArn/1001/request+1.csr\",\"v1\",\"false\",\"false\",\"100\"\n");
+        mockObject("inventory", "data/2.csv",
+                "\"bucket\",\"arn%3Apca/PAIArn/1001/request+2.csr\",\"v3\",\"true\",\"true\",\"0\"\n");
+        val job = new BackfillFromManifest(s3Client, backfill, 10, outputDir, line -> {});
+
+        val summary = job.run("inventory", "bucket/config/2023-01-01T00-00Z/manifest.json");
+        assertEquals(3, summary.processed);
+        // Only the latest version which isn't a delete marker.
+        assertEquals(1L, summary.results.get("Succeeded"));
+        verify(backfill, times(1)).run(argThat((List<CsrBackfill.Task> tasks) -> tasks.size() == 1 &&
+                "v2".equals(tasks.get(0).versionId)), anyLong(), any());
+    }
+
+    @SneakyThrows
+    @Test
+    void runRetriesTemporaryFailures() {
+        mockObject("manifests", "manifest.csv", csvManifest);
+        val job = new BackfillFromManifest(s3Client, backfill, 2, outputDir, line -> {}, Duration.ZERO);
+        temporaryFailures.put("2", 1);
+
+        val summary = job.run("manifests", "manifest.csv");
+        assertEquals(3L, summary.results.get("Succeeded"));
+        // Only the failed task is tried again, before the chunk is checkpointed.
+        verify(backfill, times(1)).run(argThat((List<CsrBackfill.Task> tasks) -> tasks.size() == 1 &&
+                tasks.get(0).taskId.equals("2")), anyLong(), any());
+        val results = Files.readAllLines(outputDir.resolve(BackfillFromManifest.RESULTS_FILE));
+        assertEquals(3, results.size());
+        assertTrue(results.stream().allMatch(result -> result.contains("\"resultCode\":\"Succeeded\"")));
+    }
+
+    @SneakyThrows
+    @Test
+    void runGivesUpOnTemporaryFailures() {
+        mockObject("manifests", "manifest.csv", csvManifest);
+        val job = new BackfillFromManifest(s3Client, backfill, 2, outputDir, line -> {}, Duration.ZERO);
+        temporaryFailures.put("2", Integer.MAX_VALUE);
+
+        val summary = job.run("manifests", "manifest.csv");
+        assertTrue(summary.completed);
+        assertEquals(2L, summary.results.get("Succeeded"));
+        assertEquals(1L, summary.results.get("TemporaryFailure"));
+        verify(backfill, times(BackfillFromManifest.MAX_CHUNK_ATTEMPTS - 1)).run(
+                argThat((List<CsrBackfill.Task> tasks) -> tasks.size() == 1 && tasks.get(0).taskId.equals("2")), anyLong(), any());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.S3BatchEvent;
+import com.amazonaws.services.lambda.runtime.events.S3BatchResponse;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.acmpca.AcmPcaClient;
+import software.amazon.awssdk.services.acmpca.model.*;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class BackfillHandlerTest {
+    private final Context context = mock(Context.class);
+    private final LambdaLogger logger = mock(LambdaLogger.class);
+    private final S3Client s3Client = mock(S3Client.class);
+    private final AcmPcaClient pcaClient = mock(AcmPcaClient.class);
+    private final Process proc = mock(Process.class);
+    private final InputStream inStream = mock(InputStream.class);
+    private final ProcessBuilder procBuilder = mock(ProcessBuilder.class);
+    private final ResponseInputStream responseStream = mock(ResponseInputStream.class);
+    private final GetCertificateResponse getCertResponse = mock(GetCertificateResponse.class);
+
+    private final static String keyForPem = "arn:pca/PAIArn/1001/request 1.pem";
+
+    @TempDir
+    Path tempDir;
+
+    private CsrBackfill backfill;
+    private BackfillHandler testHandler;
+
+    @SneakyThrows
+    @BeforeEach
+    void setUp() {
+        doReturn(logger).when(context).getLogger();
+        doReturn(60_000).when(context).getRemainingTimeInMillis();
+        doReturn(HandlerTest.csr.getBytes(StandardCharsets.UTF_8)).when(responseStream).readAllBytes();
+        doReturn(responseStream).when(s3Client).getObject(any(GetObjectRequest.class));
+        // No certificate is left pending by an earlier attempt.
+        doThrow(NoSuchKeyException.builder().build()).when(s3Client).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().endsWith('.' + DacIssuer.PENDING_EXT)));
+        doReturn(PutObjectResponse.builder().versionId("123").build()).when(s3Client)
+                .putObject(any(PutObjectRequest.class), any(RequestBody.class));
+
+        doReturn(GetCertificateAuthorityCertificateResponse.builder()
+                .certificate(HandlerTest.pai)
+                .certificateChain(HandlerTest.paa)
+                .build()).when(pcaClient).getCertificateAuthorityCertificate(any(GetCertificateAuthorityCertificateRequest.class));
+
+        val issueCertResponse = mock(IssueCertificateResponse.class);
+        doReturn(issueCertResponse).when(pcaClient).issueCertificate(any(IssueCertificateRequest.class));
+        doReturn("certArn").when(issueCertResponse).certificateArn();
+
+        doReturn(getCertResponse).when(pcaClient).getCertificate(any(GetCertificateRequest.class));
+        doReturn("PEM").when(getCertResponse).certificate();
+
+        doReturn(proc).when(procBuilder).start();
+        doReturn(0).when(proc).waitFor();
+        doReturn(inStream).when(proc).getErrorStream();
+        doReturn(new byte[0]).when(inStream).readAllBytes();
+
+        val validator = new ChipCertValidator(
+                procBuilder, tempDir.resolve("paa.pem"), tempDir.resolve("pai.pem"), tempDir.resolve("dac.pem"));
+        val dacIssuer = new DacIssuer(s3Client, new IssueDeviceAttestationCertificate(pcaClient), () -> validator,
+                new PaiPoolRouter(Map.of()));
+        // A single worker, so the validator isn't shared.
+        backfill = new CsrBackfill(dacIssuer, 1);
+        testHandler = new BackfillHandler(backfill);
+    }
+
+    @AfterEach
+    void tearDown() {
+        backfill.close();
+    }
+
+    private static S3BatchEvent.Task task(final String taskId, final String key) {
+        val task = new S3BatchEvent.Task();
+        task.setTaskId(taskId);
+        task.setS3BucketArn("arn:aws:s3:::bucket");
+        task.setS3Key(key);
+        return task;
+    }
+
+    @Test
+    void handleRequest() {
+        val event = new S3BatchEvent();
+        event.setInvocationSchemaVersion("1.0");
+        event.setInvocationId("invocation");
+        event.setTasks(List.of(
+                task("task1", "arn%3Apca/PAIArn/1001/request+1.csr"),
+                task("task2", "arn%3Apca/PAIArn/1001/request+1.pem"),
+                task("task3", "unexpected/request+3.csr")));
+
+        val response = testHandler.handleRequest(event, context);
+        assertEquals("1.0", response.getInvocationSchemaVersion());
+        assertEquals("invocation", response.getInvocationId());
+        assertEquals(List.of("task1", "task2", "task3"),
+                response.getResults().stream().map(S3BatchResponse.Result::getTaskId).collect(Collectors.toList()));
+        assertEquals(List.of(S3BatchResponse.ResultCode.Succeeded, S3BatchResponse.ResultCode.Succeeded,
+                        S3BatchResponse.ResultCode.PermanentFailure),
+                response.getResults().stream().map(S3BatchResponse.Result::getResultCode).collect(Collectors.toList()));
+        assertEquals(keyForPem, response.getResults().get(0).getResultString());
+
+        verify(pcaClient, times(1)).issueCertificate(any(IssueCertificateRequest.class));
+        verify(s3Client, times(1)).putObject(
+                argThat((PutObjectRequest req) -> req.key().equals(keyForPem)),
+                any(RequestBody.class));
+        // Without batch metadata only the .pem is written, like for the uploaded CSRs.
+        verify(s3Client, never()).putObject(
+                argThat((PutObjectRequest req) -> req.key().contains('/' + ManifestAggregator.MANIFEST_DIR + '/')),
+                any(RequestBody.class));
+    }
+
+    @Test
+    void handleRequestTransientFailure() {
+        doThrow(RequestFailedException.class).when(pcaClient).getCertificate(any(GetCertificateRequest.class));
+        val event = new S3BatchEvent();
+        event.setInvocationSchemaVersion("1.0");
+        event.setInvocationId("invocation");
+        event.setTasks(List.of(task("task1", "arn%3Apca/PAIArn/1001/request+1.csr")));
+
+        val response = testHandler.handleRequest(event, context);
+        assertEquals(S3BatchResponse.ResultCode.TemporaryFailure, response.getResults().get(0).getResultCode());
+    }
+
+    @Test
+    void handleRequestUnsupportedSchema() {
+        val event = new S3BatchEvent();
+        event.setInvocationSchemaVersion("2.0");
+        event.setInvocationId("invocation");
+        val task = task("task1", "arn%3Apca/PAIArn/1001/request+1.csr");
+        task.setS3BucketArn(null);
+        event.setTasks(List.of(task));
+
+        val response = testHandler.handleRequest(event, context);
+        assertEquals("2.0", response.getInvocationSchemaVersion());
+        assertEquals("task1", response.getResults().get(0).getTaskId());
+        assertEquals(S3BatchResponse.ResultCode.PermanentFailure, response.getResults().get(0).getResultCode());
+        verify(pcaClient, never()).issueCertificate(any(IssueCertificateRequest.class));
+    }
+
+    @Test
+    void handleRequestMissingBucket() {
+        val event = new S3BatchEvent();
+        event.setInvocationSchemaVersion("1.0");
+        event.setInvocationId("invocation");
+        val task = task("task2", "arn%3Apca/PAIArn/1001/request+1.csr");
+        task.setS3BucketArn(null);
+        event.setTasks(List.of(task("task1", "arn%3Apca/PAIArn/1001/request+1.csr"), task));
+
+        val response = testHandler.handleRequest(event, context);
+        assertEquals(List.of(S3BatchResponse.ResultCode.Succeeded, S3BatchResponse.ResultCode.PermanentFailure),
+                response.getResults().stream().map(S3BatchResponse.Result::getResultCode).collect(Collectors.toList()));
+        assertEquals("task2", response.getResults().get(1).getTaskId());
+        verify(pcaClient, times(1)).issueCertificate(any(IssueCertificateRequest.class));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompareRuntimesTest {
+
+    @Test
+    void parseReportColdStart() {
+        val report = CompareRuntimes.parseReport("START RequestId: 1234 Version: $LATEST\n" +
+                "END RequestId: 1234\n" +
+                "REPORT RequestId: 1234\tDuration: 45.67 ms\tBilled Duration: 46 ms\tMemory Size: 512 MB\t" +
+                "Max Memory Used: 187 MB\tInit Duration: 3456.78 ms\t\n");
+        assertEquals(45.67, report.durationMs);
+        assertEquals(3456.78, report.initDurationMs);
+        assertEquals(187, report.maxMemoryUsedMb);
+    }
+
+    @Test
+    void parseReportWarm() {
+        val report = CompareRuntimes.parseReport(
+                "REPORT RequestId: 1234\tDuration: 2.01 ms\tBilled Duration: 3 ms\tMemory Size: 512 MB\tMax Memory Used: 60 MB\t\n");
+        assertEquals(2.01, report.durationMs);
+        assertNull(report.initDurationMs);
+        assertEquals(60, report.maxMemoryUsedMb);
+    }
+
+    @Test
+    void parseReportMissing() {
+        assertThrows(IllegalArgumentException.class, () -> CompareRuntimes.parseReport("END RequestId: 1234\n"));
+    }
+
+    @Test
+    void percentile() {
+        val values = List.of(1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0, 10.0);
+        assertEquals(5.0, CompareRuntimes.percentile(values, 0.5));
+        assertEquals(9.0, CompareRuntimes.percentile(values, 0.9));
+        assertEquals(1.0, CompareRuntimes.percentile(values, 0.0));
+        assertEquals(Double.NaN, CompareRuntimes.percentile(List.of(), 0.5));
+    }
+
+    @Test
+    void uploadPayload() {
+        // The payload is parsed the same way as the real notifications, and is an upload of the CSR.
+        val payload = CompareRuntimes.uploadPayload("bucket", "arn:pca/PAIArn/1001/test 1.csr");
+        val records = JsonParser.parseString(payload).getAsJsonObject().getAsJsonArray("Records");
+        assertEquals(1, records.size());
+        assertEquals("aws:sqs", records.get(0).getAsJsonObject().get("eventSource").getAsString());
+        val body = records.get(0).getAsJsonObject().get("body").getAsString();
+        val s3Event = new Gson().fromJson(body.replace("Records", "records"), S3Event.class);
+        assertEquals("ObjectCreated:Put", s3Event.getRecords().get(0).getEventName());
+        assertEquals("bucket", s3Event.getRecords().get(0).getS3().getBucket().getName());
+        assertEquals("arn:pca/PAIArn/1001/test 1.csr",
+                URLDecoder.decode(s3Event.getRecords().get(0).getS3().getObject().getKey(), StandardCharsets.UTF_8));
+    }
+}
@@ -10,6 +10,8 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonPrimitive;
@@ -21,26 +23,47 @@ import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.services.acmpca.AcmPcaClient;
 import software.amazon.awssdk.services.acmpca.model.*;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
 class HandlerTest {
-    private final JsonSerializer<org.joda.time.DateTime> DateTimeSerializer = (src, typeOfSrc, context) -> new JsonPrimitive(src.toString());
-    private final Gson gson = new GsonBuilder().registerTypeAdapter(org.joda.time.DateTime.class, DateTimeSerializer).create();
+    private static final JsonSerializer<org.joda.time.DateTime> DateTimeSerializer = (src, typeOfSrc, context) -> new JsonPrimitive(src.toString());
+    private static final Gson gson = new GsonBuilder().registerTypeAdapter(org.joda.time.DateTime.class, DateTimeSerializer).create();
 
     private final Context context = mock(Context.class);// this.new TestContext();
     private final LambdaLogger logger = mock(LambdaLogger.class);
@@ -49,11 +72,16 @@ class HandlerTest {
     private final Process proc = mock(Process.class);
     private final InputStream inStream = mock(InputStream.class);
     private final ProcessBuilder procBuilder = mock(ProcessBuilder.class);
-    private final IssueDeviceAttestationCertificate issueDeviceAttestationCertificate = new IssueDeviceAttestationCertificate(pcaClient);
+    /** Only moves as the issuer waits for a certificate, so the waiting takes no real time. */
+    private final AtomicReference<Instant> now = new AtomicReference<>(Instant.now());
+    private final IssueDeviceAttestationCertificate issueDeviceAttestationCertificate = new IssueDeviceAttestationCertificate(
+            pcaClient, now::get, duration -> now.updateAndGet(instant -> instant.plus(duration)));
 
-    private final Handler testHandler = new Handler(s3Client, pcaClient, issueDeviceAttestationCertificate, procBuilder);
+    private final PaiPoolRouter paiPoolRouter = new PaiPoolRouter(Map.of("light", List.of("arn:pca/PAIArn")));
 
-    private static final String csr = "-----BEGIN CERTIFICATE REQUEST-----\n" +
+    private final Handler testHandler = new Handler(s3Client, issueDeviceAttestationCertificate, procBuilder, paiPoolRouter);
+
+    static final String csr = "-----BEGIN CERTIFICATE REQUEST-----\n" +
             "MIIBKzCB0gIBADAiMSAwHgYDVQQDDBdEQUMgTXZpZDoxMzgxIE1waWQ6MTAwMTBZ\n" +
             "MBMGByqGSM49AgEGCCqGSM49AwEHA0IABH9ZA1RJ/HbJ+fHntuFrZoYGPdFJ5L0O\n" +
             "cdkoRhETbkFy1oHwit8vnzqs76y0wf88yIGqKJGNl93CgyWRD+zsp9qgTjBMBgkq\n" +
@@ -63,7 +91,7 @@ class HandlerTest {
             "9WZDX5ic86lqSccEDBqm\n" +
             "-----END CERTIFICATE REQUEST-----\n";
 
-    private static final String pai = "-----BEGIN CERTIFICATE-----\n" +
+    static final String pai = "-----BEGIN CERTIFICATE-----\n" +
             "MIIBxDCCAWqgAwIBAgIRAP3UJkzoBle7Rb8si6pWHb0wCgYIKoZIzj0EAwIwJDEM\n" +
             "MAoGA1UEAwwDUEFBMRQwEgYKKwYBBAGConwCAQwEMTM4MTAeFw0yMzAyMTMxODA3\n" +
             "NDZaFw0zMzAyMTMxOTA3NDVaMDoxDDAKBgNVBAMMA1BBSTEUMBIGCisGAQQBgqJ8\n" +
@@ -76,7 +104,7 @@ class HandlerTest {
             "x7eFyooHFb6lT2zPC4XwXESk2sPohQQe\n" +
             "-----END CERTIFICATE-----";
 
-    private static final String paa = "-----BEGIN CERTIFICATE-----\n" +
+    static final String paa = "-----BEGIN CERTIFICATE-----\n" +
             "MIIBhzCCAS6gAwIBAgIQcTl3LVWoGVzOmFipcgG58jAKBggqhkjOPQQDAjAkMQww\n" +
             "CgYDVQQDDANQQUExFDASBgorBgEEAYKifAIBDAQxMzgxMB4XDTIzMDEyNDE4NTc1\n" +
             "MFoXDTM4MDEyNDE5NTc1MFowJDEMMAoGA1UEAwwDUEFBMRQwEgYKKwYBBAGConwC\n" +
@@ -101,8 +129,12 @@ class HandlerTest {
     private final static String keyMangled = "arn%3Apca/PAIArn/1001/request+1.csr";
     private final static String keyForError = "arn:pca/PAIArn/1001/request 1.err";
     private final static String keyForPem = "arn:pca/PAIArn/1001/request 1.pem";
+    private final static String keyForPending = "arn:pca/PAIArn/1001/request 1.pending";
     private final static String key2 = "arn:pca/PAIArn/1001/request+2.crs";
     private final static String key3Mangled = "arn%3Apca/PAIArn/1002/request+3.csr";
+    private final static String keyPool = "pool/light/1001/request+4.csr";
+    private final static String keyPoolForPem = "pool/light/1001/request 4.pem";
+    private final static String keyUnknownPool = "pool/dark/1001/request+5.csr";
     private final static S3EventNotification.S3EventNotificationRecord msg1S3Msg1 = new S3EventNotification.S3EventNotificationRecord(
             "us-west-2",
             "ObjectCreated:Put",
@@ -180,6 +212,31 @@ class HandlerTest {
 
     private final static S3Event msg1S3Event = new S3Event(List.of(msg1S3Msg1, msg1S3Msg2, msg1S3Msg3, msg1S3Msg4, msg1S3Msg5));
 
+    static S3EventNotification.S3EventNotificationRecord s3Message(final String key) {
+        return new S3EventNotification.S3EventNotificationRecord(
+                "us-west-2",
+                "ObjectCreated:Put",
+                "aws:s3",
+                "2000-01-01T00:00:00.000Z",
+                "2.1",
+                new S3EventNotification.RequestParametersEntity("1.1.1.1"),
+                new S3EventNotification.ResponseElementsEntity("aaa", "bbb"),
+                new S3EventNotification.S3Entity(
+                        "aaa",
+                        new S3EventNotification.S3BucketEntity("bucket", new S3EventNotification.UserIdentityEntity("principalId"), "arn"),
+                        new S3EventNotification.S3ObjectEntity(key, 1234L, "tag", "version", "sequencer"),
+                        "schemaVersion"),
+                new S3EventNotification.UserIdentityEntity("principalId"));
+    }
+
+    /**
+     * @return body of the SQS message S3 sends when the given objects are uploaded.
+     */
+    static String sqsBody(final String... keys) {
+        return gson.toJson(new S3Event(Arrays.stream(keys).map(HandlerTest::s3Message).collect(Collectors.toList())))
+                .replace("records", "Records");
+    }
+
     private final SQSEvent.SQSMessage msg1 = new SQSEvent.SQSMessage();
 
     private final SQSEvent.SQSMessage msg2 = new SQSEvent.SQSMessage();
@@ -202,8 +259,12 @@ class HandlerTest {
     @BeforeEach
     void setUp() {
         doReturn(logger).when(context).getLogger();
+        doReturn(60_000).when(context).getRemainingTimeInMillis();
         doReturn(csr.getBytes(StandardCharsets.UTF_8)).when(responseStream).readAllBytes();
         doReturn(responseStream).when(s3Client).getObject(any(GetObjectRequest.class));
+        // No certificate is left pending by an earlier attempt.
+        doThrow(NoSuchKeyException.builder().build()).when(s3Client).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().endsWith('.' + DacIssuer.PENDING_EXT)));
         doReturn(PutObjectResponse.builder().versionId("123").build()).when(s3Client)
                 .putObject(any(PutObjectRequest.class), any(RequestBody.class));
 
@@ -229,6 +290,103 @@ class HandlerTest {
         verify(s3Client, times(1)).putObject(
                 argThat((PutObjectRequest req) -> req.key().equals(keyForPem)),
                 any(RequestBody.class));
+        verify(logger, atLeastOnce()).log(anyString());
+        // Every log event is a single JSON document.
+        verify(logger, never()).log(argThat((String line) -> line.contains("\n") || !line.startsWith("{")));
+    }
+
+    @Test
+    void handleRequestWithoutBatch() {
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+
+        // Without batch metadata only the .pem or .err is written.
+        verify(s3Client, never()).putObject(
+                argThat((PutObjectRequest req) -> req.key().contains('/' + ManifestAggregator.MANIFEST_DIR + '/')),
+                any(RequestBody.class));
+    }
+
+    @Test
+    void handleRequestBatchCompletions() {
+        val stored = recordStoredObjects();
+        doReturn(GetObjectResponse.builder()
+                .metadata(Map.of(DacIssuer.BATCH_ID_METADATA, "b1", DacIssuer.BATCH_SIZE_METADATA, "1"))
+                .build()).when(responseStream).response();
+
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+
+        // The outcome is recorded under the batch, along with the batch size, and left to the aggregator.
+        val completionKey = ManifestAggregator.completionKey("arn:pca/PAIArn/1001", "b1", "request 1");
+        assertTrue(stored.get(completionKey).contains(keyForPem));
+        assertTrue(stored.get(completionKey).contains("ISSUED"));
+        verify(s3Client, times(1)).putObject(
+                argThat((PutObjectRequest req) -> req.key().equals(completionKey) &&
+                        "1".equals(req.metadata().get(DacIssuer.BATCH_SIZE_METADATA))),
+                any(RequestBody.class));
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    void handleRequestLargeBatchNearDeadline() {
+        // Just enough time for the CSRs, while the rest of the large batch is done already.
+        doReturn((int) (TimeBudget.SAFETY_MARGIN_MILLIS + TimeBudget.DEFAULT_ITEM_COST_MILLIS + 500)).when(context)
+                .getRemainingTimeInMillis();
+        doReturn(GetObjectResponse.builder()
+                .metadata(Map.of(DacIssuer.BATCH_ID_METADATA, "b1",
+                                 DacIssuer.BATCH_SIZE_METADATA, String.valueOf(ManifestAggregator.MAX_BATCH_SIZE)))
+                .build()).when(responseStream).response();
+
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+
+        // Each CSR costs a single write of its outcome, whatever the size of its batch.
+        verify(s3Client, times(2)).putObject(
+                argThat((PutObjectRequest req) -> req.key().endsWith(ManifestAggregator.COMPLETION_SUFFIX)),
+                any(RequestBody.class));
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(s3Client, never()).headObject(any(HeadObjectRequest.class));
+        verify(s3Client, never()).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().contains('/' + ManifestAggregator.MANIFEST_DIR + '/')));
+    }
+
+    @Test
+    void handleRequestLastDelivery() {
+        val stored = recordStoredObjects();
+        doReturn(GetObjectResponse.builder()
+                .metadata(Map.of(DacIssuer.BATCH_ID_METADATA, "b1", DacIssuer.BATCH_SIZE_METADATA, "2"))
+                .build()).when(responseStream).response();
+        doThrow(RequestFailedException.class).when(pcaClient).getCertificate(any(GetCertificateRequest.class));
+        msg1.setAttributes(Map.of("ApproximateReceiveCount", "5"));
+        val validator = new ChipCertValidator(procBuilder, Path.of("/tmp/paa.pem"), Path.of("/tmp/pai.pem"), Path.of("/tmp/dac.pem"));
+        val handler = new Handler(new DacIssuer(s3Client, issueDeviceAttestationCertificate, () -> validator, paiPoolRouter,
+                null, 5));
+
+        // The message still goes to the dead-letter queue, but its batch doesn't wait for it anymore.
+        assertEquals(1, handler.handleRequest(event, context).getBatchItemFailures().size());
+        val completion = stored.get(ManifestAggregator.completionKey("arn:pca/PAIArn/1001", "b1", "request 1"));
+        assertTrue(completion.contains("FAILED"));
+        assertTrue(completion.contains("\"retry\": false"));
+    }
+
+    @Test
+    void handleRequestRetryNotRecorded() {
+        val stored = recordStoredObjects();
+        doReturn(GetObjectResponse.builder()
+                .metadata(Map.of(DacIssuer.BATCH_ID_METADATA, "b1", DacIssuer.BATCH_SIZE_METADATA, "2"))
+                .build()).when(responseStream).response();
+        doThrow(RequestFailedException.class).when(pcaClient).getCertificate(any(GetCertificateRequest.class));
+
+        assertEquals(1, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+        assertFalse(stored.containsKey(ManifestAggregator.completionKey("arn:pca/PAIArn/1001", "b1", "request 1")));
+    }
+
+    @Test
+    void handleRequestMalformedBatch() {
+        doReturn(GetObjectResponse.builder()
+                .metadata(Map.of(DacIssuer.BATCH_ID_METADATA, "../b1", DacIssuer.BATCH_SIZE_METADATA, "1"))
+                .build()).when(responseStream).response();
+
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+        verify(pcaClient, never()).issueCertificate(any(IssueCertificateRequest.class));
+        verify(s3Client, times(1)).putObject(argThat((PutObjectRequest req) -> req.key().equals(keyForError)), any(RequestBody.class));
     }
 
     @Test
@@ -284,4 +442,186 @@ class HandlerTest {
                     }
                 }));
     }
-}
\ No newline at end of file
+
+    @Test
+    void handleRequestOutOfTime() {
+        doReturn(1_000).when(context).getRemainingTimeInMillis();
+        val failures = testHandler.handleRequest(event, context).getBatchItemFailures();
+        assertEquals(1, failures.size());
+        assertEquals("msg1", failures.get(0).getItemIdentifier());
+        verify(pcaClient, never()).issueCertificate(any(IssueCertificateRequest.class));
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+
+    @Test
+    void handleRequestPool() {
+        val poolMsg = new SQSEvent.SQSMessage();
+        poolMsg.setEventSource("aws:sqs");
+        poolMsg.setBody(sqsBody(keyPool, keyUnknownPool));
+        poolMsg.setMessageId("msg3");
+        val poolEvent = new SQSEvent();
+        poolEvent.setRecords(List.of(poolMsg));
+
+        assertEquals(0, testHandler.handleRequest(poolEvent, context).getBatchItemFailures().size());
+        verify(pcaClient, times(1)).issueCertificate(
+                argThat((IssueCertificateRequest req) -> req.certificateAuthorityArn().equals("arn:pca/PAIArn")));
+        verify(s3Client, times(1)).putObject(
+                argThat((PutObjectRequest req) -> req.key().equals(keyPoolForPem) &&
+                        "arn:pca/PAIArn".equals(req.metadata().get(DacIssuer.PAI_ARN_METADATA))),
+                any(RequestBody.class));
+        // The CSR for an unknown pool is rejected where the client expects its outcome.
+        verify(s3Client, times(1)).putObject(
+                argThat((PutObjectRequest req) -> req.key().equals("pool/dark/1001/request 5.err")), any(RequestBody.class));
+    }
+
+    @Test
+    void handleRequestUnknownPoolInBatch() {
+        val stored = recordStoredObjects();
+        doReturn(HeadObjectResponse.builder()
+                .metadata(Map.of(DacIssuer.BATCH_ID_METADATA, "b1", DacIssuer.BATCH_SIZE_METADATA, "2"))
+                .build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+        val poolMsg = new SQSEvent.SQSMessage();
+        poolMsg.setEventSource("aws:sqs");
+        poolMsg.setBody(sqsBody(keyUnknownPool));
+        poolMsg.setMessageId("msg3");
+        val poolEvent = new SQSEvent();
+        poolEvent.setRecords(List.of(poolMsg));
+
+        assertEquals(0, testHandler.handleRequest(poolEvent, context).getBatchItemFailures().size());
+        // The rejected CSR counts towards its batch.
+        val completion = stored.get(ManifestAggregator.completionKey("pool/dark/1001", "b1", "request 5"));
+        assertTrue(completion.contains("FAILED"));
+        assertTrue(completion.contains("pool/dark/1001/request 5.err"));
+    }
+
+    @Test
+    void handleRequestIdempotencyToken() {
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+        val token = Hashing.sha256().hashString(csr, StandardCharsets.UTF_8).toString().substring(0, 36);
+        verify(pcaClient, atLeastOnce()).issueCertificate(argThat((IssueCertificateRequest req) -> token.equals(req.idempotencyToken())));
+        verify(pcaClient, never()).issueCertificate(argThat((IssueCertificateRequest req) -> !token.equals(req.idempotencyToken())));
+    }
+
+    @Test
+    void handleRequestFirstDeliverySkipsPendingLookup() {
+        msg1.setAttributes(Map.of("ApproximateReceiveCount", "1"));
+
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+        verify(s3Client, never()).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().endsWith('.' + DacIssuer.PENDING_EXT)));
+    }
+
+    @Test
+    void handleRequestPendingLookupThrottled() {
+        msg1.setAttributes(Map.of("ApproximateReceiveCount", "2"));
+        doThrow(S3Exception.builder().statusCode(503).build()).when(s3Client).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().endsWith('.' + DacIssuer.PENDING_EXT)));
+
+        val failures = testHandler.handleRequest(event, context).getBatchItemFailures();
+        assertEquals(1, failures.size());
+        assertEquals("msg1", failures.get(0).getItemIdentifier());
+        verify(pcaClient, never()).issueCertificate(any(IssueCertificateRequest.class));
+        // Nothing is wrong with the CSR, so the client isn't told it failed.
+        verify(s3Client, never()).putObject(argThat((PutObjectRequest req) -> req.key().equals(keyForError)), any(RequestBody.class));
+    }
+
+    @SneakyThrows
+    @Test
+    void handleRequestCertificateNotReady() {
+        // Enough time to start a request, but not to wait for its certificate.
+        doReturn((int) (TimeBudget.SAFETY_MARGIN_MILLIS + TimeBudget.DEFAULT_ITEM_COST_MILLIS + 100)).when(context)
+                .getRemainingTimeInMillis();
+        doThrow(RequestInProgressException.class).when(pcaClient).getCertificate(any(GetCertificateRequest.class));
+
+        val failures = testHandler.handleRequest(event, context).getBatchItemFailures();
+        assertEquals(1, failures.size());
+        assertEquals("msg1", failures.get(0).getItemIdentifier());
+        verify(pcaClient, times(1)).issueCertificate(any(IssueCertificateRequest.class));
+        // The issued certificate is recorded for the retry, which isn't a failure the client should learn about.
+        verify(s3Client, times(1)).putObject(
+                argThat((PutObjectRequest req) -> req.key().endsWith('.' + DacIssuer.PENDING_EXT)),
+                argThat((RequestBody body) -> {
+                    try (val input = body.contentStreamProvider().newStream()) {
+                        return new String(input.readAllBytes()).contains("certArn");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+        verify(s3Client, never()).putObject(argThat((PutObjectRequest req) -> req.key().endsWith(".err")), any(RequestBody.class));
+    }
+
+    @Test
+    void handleRequestRateLimited() {
+        // A permit every 100 seconds: only the first of the two valid CSRs gets one before the deadline.
+        val validator = new ChipCertValidator(procBuilder, Path.of("/tmp/paa.pem"), Path.of("/tmp/pai.pem"), Path.of("/tmp/dac.pem"));
+        val handler = new Handler(new DacIssuer(s3Client, issueDeviceAttestationCertificate, () -> validator, paiPoolRouter,
+                RateLimiter.create(0.01)));
+
+        val failures = handler.handleRequest(event, context).getBatchItemFailures();
+        assertEquals(1, failures.size());
+        assertEquals("msg1", failures.get(0).getItemIdentifier());
+        verify(pcaClient, times(1)).issueCertificate(any(IssueCertificateRequest.class));
+        // The deferred CSRs are retried, not reported as failed.
+        verify(s3Client, never()).putObject(argThat((PutObjectRequest req) -> req.key().endsWith(".err")
+                && !req.key().contains("request 2") && !req.key().contains("request 5")), any(RequestBody.class));
+    }
+
+    @SneakyThrows
+    @Test
+    void handleRequestResumesPendingCertificate() {
+        val pendingStream = mock(ResponseInputStream.class);
+        doReturn(("{\"certificateArn\": \"pendingCertArn\", \"paiArn\": \"arn:pca/PAIArn\", \"csrSha256\": \"" +
+                Hashing.sha256().hashString(csr, StandardCharsets.UTF_8) + "\"}").getBytes(StandardCharsets.UTF_8))
+                .when(pendingStream).readAllBytes();
+        doReturn(pendingStream).when(s3Client).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().equals(keyForPending)));
+
+        assertEquals(0, testHandler.handleRequest(event, context).getBatchItemFailures().size());
+        // Only the CSR without a pending certificate gets a new one.
+        verify(pcaClient, times(1)).issueCertificate(any(IssueCertificateRequest.class));
+        verify(pcaClient, times(1)).getCertificate(
+                argThat((GetCertificateRequest req) -> req.certificateArn().equals("pendingCertArn")));
+        verify(s3Client, times(1)).putObject(
+                argThat((PutObjectRequest req) -> req.key().equals(keyForPem)),
+                any(RequestBody.class));
+        verify(s3Client, times(1)).deleteObject(argThat((DeleteObjectRequest req) -> req.key().equals(keyForPending)));
+    }
+
+    /**
+     * Keeps the objects written to S3, so they can be listed and read back.
+     */
+    private Map<String, String> recordStoredObjects() {
+        val stored = new ConcurrentHashMap<String, String>();
+        doAnswer(invocation -> {
+            final PutObjectRequest req = invocation.getArgument(0);
+            stored.put(req.key(), contentOf(invocation.getArgument(1)));
+            return PutObjectResponse.builder().versionId("123").build();
+        }).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        doAnswer(invocation -> {
+            final ListObjectsV2Request req = invocation.getArgument(0);
+            return ListObjectsV2Response.builder()
+                    .contents(stored.keySet().stream()
+                            .filter(key -> key.startsWith(req.prefix()))
+                            .sorted()
+                            .map(key -> S3Object.builder().key(key).build())
+                            .collect(Collectors.toList()))
+                    .isTruncated(false)
+                    .build();
+        }).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+        doThrow(NoSuchKeyException.builder().build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+        doAnswer(invocation -> {
+            final GetObjectRequest req = invocation.getArgument(0);
+            return new ResponseInputStream<>(GetObjectResponse.builder().build(), AbortableInputStream.create(
+                    new ByteArrayInputStream(stored.get(req.key()).getBytes(StandardCharsets.UTF_8))));
+        }).when(s3Client).getObject(argThat((GetObjectRequest req) -> req != null && req.key().contains('/' + ManifestAggregator.MANIFEST_DIR + '/')));
+        return stored;
+    }
+
+    private static String contentOf(final RequestBody body) {
+        try (val input = body.contentStreamProvider().newStream()) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
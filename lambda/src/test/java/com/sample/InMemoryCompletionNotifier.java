@@ -0,0 +1,40 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory stand-in for the notification channel, which records the notifications instead of delivering them.
+ */
+class InMemoryCompletionNotifier implements CompletionNotifier {
+
+    @AllArgsConstructor
+    static class Notification {
+        final String bucket;
+        final String manifestKey;
+        final String batchId;
+        final List<Completion> completions;
+    }
+
+    private final List<Notification> notifications = new ArrayList<>();
+
+    @Override
+    public synchronized void publish(@NonNull final String bucket,
+                                     @NonNull final String manifestKey,
+                                     @NonNull final String batchId,
+                                     @NonNull final List<Completion> completions) {
+        notifications.add(new Notification(bucket, manifestKey, batchId, List.copyOf(completions)));
+    }
+
+    synchronized List<Notification> notifications() {
+        return new ArrayList<>(notifications);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.NonNull;
+import lombok.val;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory stand-in for SQS, with the visibility timeout semantics the {@link SqsWorker} relies on.
+ */
+class InMemoryMessageQueue implements MessageQueue {
+
+    private static final long POLL_INTERVAL_MILLIS = 10L;
+
+    private final Duration visibilityTimeout;
+    private final Map<String, String> bodies = new LinkedHashMap<>();
+    /** Point in time each message becomes visible to the receivers again. */
+    private final Map<String, Long> visibleAt = new LinkedHashMap<>();
+    private final Map<String, Integer> receiveCounts = new LinkedHashMap<>();
+    private final List<String> deleted = new ArrayList<>();
+
+    InMemoryMessageQueue(@NonNull final Duration visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    synchronized void send(@NonNull final String messageId, @NonNull final String body) {
+        bodies.put(messageId, body);
+        visibleAt.put(messageId, 0L);
+    }
+
+    synchronized int receiveCount(@NonNull final String messageId) {
+        return receiveCounts.getOrDefault(messageId, 0);
+    }
+
+    synchronized List<String> deleted() {
+        return new ArrayList<>(deleted);
+    }
+
+    @Override
+    public List<Message> receive(final int maxMessages, @NonNull final Duration waitTime) {
+        val waitUntil = System.currentTimeMillis() + waitTime.toMillis();
+        do {
+            synchronized (this) {
+                val now = System.currentTimeMillis();
+                val messages = new ArrayList<Message>();
+                for (val entry : visibleAt.entrySet()) {
+                    if (messages.size() == maxMessages) {
+                        break;
+                    }
+                    if (entry.getValue() <= now) {
+                        entry.setValue(now + visibilityTimeout.toMillis());
+                        receiveCounts.merge(entry.getKey(), 1, Integer::sum);
+                        messages.add(new Message(entry.getKey(), UUID.randomUUID().toString(), bodies.get(entry.getKey()),
+                                receiveCounts.get(entry.getKey())));
+                    }
+                }
+                if (!messages.isEmpty()) {
+                    return messages;
+                }
+            }
+
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        } while (System.currentTimeMillis() < waitUntil);
+
+        return List.of();
+    }
+
+    @Override
+    public synchronized void delete(@NonNull final Message message) {
+        if (bodies.remove(message.messageId) != null) {
+            visibleAt.remove(message.messageId);
+            deleted.add(message.messageId);
+        }
+    }
+
+    @Override
+    public synchronized void changeVisibility(@NonNull final Message message, @NonNull final Duration timeout) {
+        visibleAt.computeIfPresent(message.messageId, (id, at) -> System.currentTimeMillis() + timeout.toMillis());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.Gson;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ManifestAggregatorTest {
+    private static final int PAGE_SIZE = 1_000;
+    private static final String UPLOAD_PREFIX = "arn:pca/PAIArn/1001";
+    private static final String MANIFEST_KEY = UPLOAD_PREFIX + '/' + ManifestAggregator.MANIFEST_DIR + "/b1.json";
+
+    private final Gson gson = new Gson();
+    private final S3Client s3Client = mock(S3Client.class);
+    private final InMemoryCompletionNotifier completionNotifier = new InMemoryCompletionNotifier();
+    private final ManifestAggregator aggregator = new ManifestAggregator(s3Client, completionNotifier, 4);
+    private final List<String> sink = new ArrayList<>();
+    /** Objects in the bucket along with their batch size metadata, if any. */
+    private final Map<String, String> stored = new ConcurrentSkipListMap<>();
+    private final Map<String, String> batchSizes = new ConcurrentSkipListMap<>();
+
+    @BeforeEach
+    void setUp() {
+        doAnswer(invocation -> {
+            final PutObjectRequest req = invocation.getArgument(0);
+            stored.put(req.key(), contentOf(invocation.getArgument(1)));
+            return PutObjectResponse.builder().build();
+        }).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        doAnswer(invocation -> {
+            final HeadObjectRequest req = invocation.getArgument(0);
+            if (!stored.containsKey(req.key())) {
+                throw NoSuchKeyException.builder().build();
+            }
+            return HeadObjectResponse.builder()
+                    .metadata(batchSizes.containsKey(req.key())
+                            ? Map.of(DacIssuer.BATCH_SIZE_METADATA, batchSizes.get(req.key()))
+                            : Map.of())
+                    .build();
+        }).when(s3Client).headObject(any(HeadObjectRequest.class));
+        // Pages of PAGE_SIZE keys, the continuation token being the last key of the previous page.
+        doAnswer(invocation -> {
+            final ListObjectsV2Request req = invocation.getArgument(0);
+            val keys = stored.keySet().stream()
+                    .filter(key -> key.startsWith(req.prefix()))
+                    .filter(key -> req.continuationToken() == null || key.compareTo(req.continuationToken()) > 0)
+                    .collect(Collectors.toList());
+            val page = keys.subList(0, Math.min(PAGE_SIZE, keys.size()));
+            return ListObjectsV2Response.builder()
+                    .contents(page.stream().map(key -> S3Object.builder().key(key).build()).collect(Collectors.toList()))
+                    .isTruncated(keys.size() > PAGE_SIZE)
+                    .nextContinuationToken(keys.size() > PAGE_SIZE ? page.get(page.size() - 1) : null)
+                    .build();
+        }).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+        doAnswer(invocation -> {
+            final GetObjectRequest req = invocation.getArgument(0);
+            return new ResponseInputStream<>(GetObjectResponse.builder().build(), AbortableInputStream.create(
+                    new ByteArrayInputStream(stored.get(req.key()).getBytes(StandardCharsets.UTF_8))));
+        }).when(s3Client).getObject(any(GetObjectRequest.class));
+    }
+
+    /**
+     * Records the outcome of a CSR of batch {@code b1} the way {@link DacIssuer} does.
+     *
+     * @return key of the outcome.
+     */
+    private String recordCompletion(final String name, final int batchSize) {
+        val key = ManifestAggregator.completionKey(UPLOAD_PREFIX, "b1", name);
+        stored.put(key, gson.toJson(new CompletionNotifier.Completion(UPLOAD_PREFIX + '/' + name + ".csr",
+                CompletionNotifier.Completion.Status.ISSUED, UPLOAD_PREFIX + '/' + name + ".pem", "arn:pca/PAIArn", false, null)));
+        batchSizes.put(key, String.valueOf(batchSize));
+        return key;
+    }
+
+    private boolean aggregate(final String completionKey) {
+        try (StructuredLogger.Batch log = new StructuredLogger().open(sink::add)) {
+            return aggregator.aggregate("bucket", completionKey, log);
+        }
+    }
+
+    @Test
+    void aggregateCompleteBatch() {
+        recordCompletion("request 1", 2);
+        val key = recordCompletion("request 2", 2);
+
+        assertTrue(aggregate(key));
+        assertTrue(stored.get(MANIFEST_KEY).contains(UPLOAD_PREFIX + "/request 2.pem"));
+        val notifications = completionNotifier.notifications();
+        assertEquals(1, notifications.size());
+        assertEquals("bucket", notifications.get(0).bucket);
+        assertEquals(MANIFEST_KEY, notifications.get(0).manifestKey);
+        assertEquals("b1", notifications.get(0).batchId);
+        assertEquals(List.of(UPLOAD_PREFIX + "/request 1.csr", UPLOAD_PREFIX + "/request 2.csr"),
+                notifications.get(0).completions.stream().map(completion -> completion.csrKey).collect(Collectors.toList()));
+    }
+
+    @Test
+    void aggregateBatchInProgress() {
+        val key = recordCompletion("request 1", 2);
+
+        assertFalse(aggregate(key));
+        assertFalse(stored.containsKey(MANIFEST_KEY));
+        assertTrue(completionNotifier.notifications().isEmpty());
+        verify(s3Client, never()).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    void aggregatePublishedBatch() {
+        val key = recordCompletion("request 1", 1);
+        stored.put(MANIFEST_KEY, "{}");
+
+        assertFalse(aggregate(key));
+        assertEquals("{}", stored.get(MANIFEST_KEY));
+        assertTrue(completionNotifier.notifications().isEmpty());
+    }
+
+    @Test
+    void aggregateLargeBatch() {
+        val batchSize = 2_500;
+        String key = null;
+        for (int i = 0; i < batchSize; ++i) {
+            key = recordCompletion("request " + i, batchSize);
+        }
+
+        assertTrue(aggregate(key));
+        // All the pages are listed, and each outcome is read once.
+        verify(s3Client, times(3)).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(s3Client, times(batchSize)).getObject(any(GetObjectRequest.class));
+        assertEquals(batchSize, completionNotifier.notifications().get(0).completions.size());
+    }
+
+    @Test
+    void aggregateUnexpectedKey() {
+        stored.put("arn:pca/PAIArn/1001/request 1.pem", "PEM");
+
+        assertFalse(aggregate("arn:pca/PAIArn/1001/request 1.pem"));
+        assertFalse(aggregate(UPLOAD_PREFIX + '/' + ManifestAggregator.MANIFEST_DIR + "/b1.json"));
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    private static String contentOf(final RequestBody body) {
+        try (val input = body.contentStreamProvider().newStream()) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PaiPoolRouterTest {
+    private final PaiPoolRouter router = new PaiPoolRouter(Map.of("light", List.of("pai1", "pai2")));
+
+    @Test
+    void spreadsInFlightRequests() {
+        assertEquals("pai1", router.acquire("light"));
+        assertEquals("pai2", router.acquire("light"));
+        router.cancel("light", "pai2");
+        assertEquals("pai2", router.acquire("light"));
+    }
+
+    @Test
+    void prefersFasterMember() {
+        router.release("light", router.acquire("light"), 10_000L, true);
+        router.release("light", router.acquire("light"), 100L, true);
+        assertEquals("pai2", router.acquire("light"));
+        assertEquals("pai2", router.acquire("light"));
+    }
+
+    @Test
+    void avoidsThrottledMember() {
+        router.release("light", router.acquire("light"), 100L, false);
+        assertEquals("pai2", router.acquire("light"));
+    }
+
+    @Test
+    void fromJson() {
+        val pools = PaiPoolRouter.fromJson("{\"light\": [\"pai3\"]}");
+        assertEquals("pai3", pools.acquire("light"));
+        assertThrows(IllegalArgumentException.class, () -> pools.acquire("dark"));
+        assertThrows(IllegalArgumentException.class, () -> PaiPoolRouter.fromJson(null).acquire("light"));
+        assertThrows(IllegalArgumentException.class, () -> PaiPoolRouter.fromJson("[1"));
+    }
+
+    @Test
+    void fromJsonNulls() {
+        assertThrows(IllegalArgumentException.class, () -> PaiPoolRouter.fromJson("null").acquire("light"));
+        assertThrows(IllegalArgumentException.class, () -> PaiPoolRouter.fromJson("{\"light\": null}"));
+        assertThrows(IllegalArgumentException.class, () -> PaiPoolRouter.fromJson("{\"light\": []}"));
+        assertThrows(IllegalArgumentException.class, () -> PaiPoolRouter.fromJson("{\"light\": [\"pai1\", null]}"));
+    }
+
+    @Test
+    void checkMembers() {
+        val subjects = Map.of(
+                "pai1", Map.of(PaiPoolRouter.VID_OID, "FFF1", PaiPoolRouter.PID_OID, "8000"),
+                "pai2", Map.of(PaiPoolRouter.VID_OID, "FFF1", PaiPoolRouter.PID_OID, "8000"),
+                "pai3", Map.of(PaiPoolRouter.VID_OID, "FFF1", PaiPoolRouter.PID_OID, "8001"),
+                "pai4", Map.of(PaiPoolRouter.VID_OID, "FFF1"));
+        router.checkMembers(subjects::get);
+        assertThrows(IllegalArgumentException.class,
+                     () -> PaiPoolRouter.fromJson("{\"light\": [\"pai1\", \"pai3\"]}").checkMembers(subjects::get));
+        assertThrows(IllegalArgumentException.class,
+                     () -> PaiPoolRouter.fromJson("{\"light\": [\"pai1\", \"pai4\"]}").checkMembers(subjects::get));
+    }
+}
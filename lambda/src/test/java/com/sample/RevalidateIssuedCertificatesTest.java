@@ -0,0 +1,146 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.SneakyThrows;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.acmpca.AcmPcaClient;
+import software.amazon.awssdk.services.acmpca.model.GetCertificateAuthorityCertificateRequest;
+import software.amazon.awssdk.services.acmpca.model.GetCertificateAuthorityCertificateResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class RevalidateIssuedCertificatesTest {
+    private final S3Client s3Client = mock(S3Client.class);
+    private final AcmPcaClient pcaClient = mock(AcmPcaClient.class);
+    private final ProcessBuilder procBuilder = mock(ProcessBuilder.class);
+    private final Process proc = mock(Process.class);
+
+    @TempDir
+    Path workDir;
+    @TempDir
+    Path outputDir;
+
+    private static final String keyValid = "arn:pca/PAIArn/1001/a.pem";
+    private static final String keyCsr = "arn:pca/PAIArn/1001/b.csr";
+    private static final String keyInvalid = "arn:pca/PAIArn/1001/c.pem";
+    private static final String keyPool = "pool/light/1001/d.pem";
+
+    private final ListObjectsV2Response page1 = ListObjectsV2Response.builder()
+            .contents(S3Object.builder().key(keyValid).build(),
+                      S3Object.builder().key(keyCsr).build(),
+                      S3Object.builder().key(keyInvalid).build())
+            .isTruncated(true)
+            .nextContinuationToken("token")
+            .build();
+    private final ListObjectsV2Response page2 = ListObjectsV2Response.builder()
+            .contents(S3Object.builder().key(keyPool).build())
+            .isTruncated(false)
+            .build();
+
+    private RevalidateIssuedCertificates job() {
+        val validator = new ChipCertValidator(procBuilder,
+                workDir.resolve("paa.pem"), workDir.resolve("pai.pem"), workDir.resolve("dac.pem"));
+        return new RevalidateIssuedCertificates(s3Client, arn -> pcaClient, () -> validator, 1, outputDir);
+    }
+
+    @SneakyThrows
+    @BeforeEach
+    void setUp() {
+        doAnswer(invocation -> {
+            final ListObjectsV2Request req = invocation.getArgument(0);
+            return req.continuationToken() != null || req.startAfter() != null ? page2 : page1;
+        }).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+
+        doAnswer(invocation -> {
+            final GetObjectRequest req = invocation.getArgument(0);
+            val metadata = req.key().equals(keyPool) ? Map.of(DacIssuer.PAI_ARN_METADATA, "arn:pca/PAIArn") : Map.<String, String>of();
+            val content = req.key().equals(keyInvalid) ? "BAD" : "DAC";
+            return ResponseBytes.fromByteArray(GetObjectResponse.builder().metadata(metadata).build(),
+                    content.getBytes(StandardCharsets.UTF_8));
+        }).when(s3Client).getObjectAsBytes(any(GetObjectRequest.class));
+
+        doReturn(GetCertificateAuthorityCertificateResponse.builder().certificate("PAI").certificateChain("PAA").build())
+                .when(pcaClient).getCertificateAuthorityCertificate(any(GetCertificateAuthorityCertificateRequest.class));
+
+        doReturn(proc).when(procBuilder).start();
+        doAnswer(invocation -> Files.readString(workDir.resolve("dac.pem")).equals("BAD") ? 1 : 0).when(proc).waitFor();
+        doAnswer(invocation -> new ByteArrayInputStream("invalid 201".getBytes(StandardCharsets.UTF_8))).when(proc).getErrorStream();
+    }
+
+    @SneakyThrows
+    @Test
+    void validatesAllPages() {
+        val summary = job().run("bucket", "");
+
+        assertTrue(summary.completed);
+        assertEquals(3, summary.checked);
+        assertEquals(Map.of("kSuccess", 2L, "kPaiSignatureInvalid", 1L), summary.results);
+        val failures = Files.readAllLines(outputDir.resolve(RevalidateIssuedCertificates.FAILURES_FILE));
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0).contains(keyInvalid));
+        verify(pcaClient, times(1)).getCertificateAuthorityCertificate(any(GetCertificateAuthorityCertificateRequest.class));
+
+        // Nothing left to do once completed.
+        job().run("bucket", "");
+        verify(s3Client, times(2)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @SneakyThrows
+    @Test
+    void resumesFromCheckpoint() {
+        Files.writeString(outputDir.resolve(RevalidateIssuedCertificates.SUMMARY_FILE),
+                "{\"bucket\":\"bucket\",\"prefix\":\"\",\"startAfter\":\"" + keyInvalid + "\",\"checked\":2," +
+                "\"results\":{\"kSuccess\":2},\"completed\":false}");
+
+        val summary = job().run("bucket", "");
+
+        assertTrue(summary.completed);
+        assertEquals(3, summary.checked);
+        assertEquals(3L, summary.results.get("kSuccess"));
+        verify(s3Client, times(1)).listObjectsV2(
+                argThat((ListObjectsV2Request req) -> keyInvalid.equals(req.startAfter())));
+        verify(s3Client, never()).getObjectAsBytes(argThat((GetObjectRequest req) -> !req.key().equals(keyPool)));
+    }
+
+    @SneakyThrows
+    @Test
+    void discardsFailuresPastCheckpoint() {
+        // The job died after appending the failures of the second page, but before its checkpoint.
+        val checkpointed = "{\"key\":\"" + keyInvalid + "\"}\n";
+        Files.writeString(outputDir.resolve(RevalidateIssuedCertificates.FAILURES_FILE),
+                checkpointed + "{\"key\":\"" + keyPool + "\"}\n");
+        Files.writeString(outputDir.resolve(RevalidateIssuedCertificates.SUMMARY_FILE),
+                "{\"bucket\":\"bucket\",\"prefix\":\"\",\"startAfter\":\"" + keyInvalid + "\",\"checked\":2," +
+                "\"failuresFileSize\":" + checkpointed.length() + "," +
+                "\"results\":{\"kSuccess\":1,\"kPaiSignatureInvalid\":1},\"completed\":false}");
+
+        val summary = job().run("bucket", "");
+
+        assertTrue(summary.completed);
+        assertEquals(Map.of("kSuccess", 2L, "kPaiSignatureInvalid", 1L), summary.results);
+        assertEquals(checkpointed, Files.readString(outputDir.resolve(RevalidateIssuedCertificates.FAILURES_FILE)));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.SneakyThrows;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.acmpca.AcmPcaClient;
+import software.amazon.awssdk.services.acmpca.model.*;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class SqsWorkerTest {
+    private final S3Client s3Client = mock(S3Client.class);
+    private final AcmPcaClient pcaClient = mock(AcmPcaClient.class);
+    private final Process proc = mock(Process.class);
+    private final InputStream inStream = mock(InputStream.class);
+    private final ProcessBuilder procBuilder = mock(ProcessBuilder.class);
+    private final ResponseInputStream responseStream = mock(ResponseInputStream.class);
+    private final GetCertificateResponse getCertResponse = mock(GetCertificateResponse.class);
+
+    private final static String key1 = "arn:pca/PAIArn/1001/request+1.csr";
+    private final static String key2 = "arn:pca/PAIArn/1001/request+2.csr";
+    private final static String key2ForPem = "arn:pca/PAIArn/1001/request 2.pem";
+
+    @TempDir
+    Path tempDir;
+
+    private DacIssuer dacIssuer;
+
+    @SneakyThrows
+    @BeforeEach
+    void setUp() {
+        doReturn(HandlerTest.csr.getBytes(StandardCharsets.UTF_8)).when(responseStream).readAllBytes();
+        doReturn(responseStream).when(s3Client).getObject(any(GetObjectRequest.class));
+        // No certificate is left pending by an earlier attempt.
+        doThrow(NoSuchKeyException.builder().build()).when(s3Client).getObject(
+                argThat((GetObjectRequest req) -> req != null && req.key().endsWith('.' + DacIssuer.PENDING_EXT)));
+        doReturn(PutObjectResponse.builder().versionId("123").build()).when(s3Client)
+                .putObject(any(PutObjectRequest.class), any(RequestBody.class));
+
+        doReturn(GetCertificateAuthorityCertificateResponse.builder()
+                .certificate(HandlerTest.pai)
+                .certificateChain(HandlerTest.paa)
+                .build()).when(pcaClient).getCertificateAuthorityCertificate(any(GetCertificateAuthorityCertificateRequest.class));
+
+        val issueCertResponse = mock(IssueCertificateResponse.class);
+        doReturn(issueCertResponse).when(pcaClient).issueCertificate(any(IssueCertificateRequest.class));
+        doReturn("certArn").when(issueCertResponse).certificateArn();
+
+        doReturn(getCertResponse).when(pcaClient).getCertificate(any(GetCertificateRequest.class));
+        doReturn("PEM").when(getCertResponse).certificate();
+
+        doReturn(proc).when(procBuilder).start();
+        doReturn(0).when(proc).waitFor();
+        doReturn(inStream).when(proc).getErrorStream();
+        doReturn(new byte[0]).when(inStream).readAllBytes();
+
+        val validator = new ChipCertValidator(
+                procBuilder, tempDir.resolve("paa.pem"), tempDir.resolve("pai.pem"), tempDir.resolve("dac.pem"));
+        dacIssuer = new DacIssuer(s3Client, new IssueDeviceAttestationCertificate(pcaClient), () -> validator,
+                new PaiPoolRouter(Map.of()));
+    }
+
+    @SneakyThrows
+    @Test
+    void deletesProcessedMessagesOnly() {
+        doThrow(SdkClientException.class).when(s3Client).putObject(
+                argThat((PutObjectRequest req) -> req.key().equals(key2ForPem)), any(RequestBody.class));
+
+        val queue = new InMemoryMessageQueue(Duration.ofSeconds(30));
+        queue.send("msg1", HandlerTest.sqsBody(key1));
+        queue.send("msg2", HandlerTest.sqsBody(key2));
+
+        // A single worker, so the validator isn't shared.
+        val worker = new SqsWorker(queue, dacIssuer, line -> {}, 2, 1, Duration.ofSeconds(30), Duration.ofMillis(50));
+        worker.start();
+        try {
+            waitFor(() -> queue.deleted().contains("msg1") && queue.receiveCount("msg2") == 1);
+        } finally {
+            worker.stop();
+        }
+
+        assertEquals(List.of("msg1"), queue.deleted());
+        // The failed message stays hidden until its visibility timeout expires, then SQS redelivers it.
+        assertEquals(1, queue.receiveCount("msg2"));
+        verify(pcaClient, times(2)).issueCertificate(any(IssueCertificateRequest.class));
+    }
+
+    @SneakyThrows
+    @Test
+    void extendsVisibilityWhileProcessing() {
+        // Validation takes several visibility timeouts.
+        doAnswer(invocation -> {
+            Thread.sleep(1_000);
+            return 0;
+        }).when(proc).waitFor();
+
+        val queue = new InMemoryMessageQueue(Duration.ofMillis(300));
+        queue.send("msg1", HandlerTest.sqsBody(key1));
+
+        val worker = new SqsWorker(queue, dacIssuer, line -> {}, 2, 1, Duration.ofMillis(300), Duration.ofMillis(50));
+        worker.start();
+        try {
+            waitFor(() -> queue.deleted().contains("msg1"));
+        } finally {
+            worker.stop();
+        }
+
+        assertEquals(1, queue.receiveCount("msg1"));
+        verify(pcaClient, times(1)).issueCertificate(any(IssueCertificateRequest.class));
+    }
+
+    @SneakyThrows
+    private static void waitFor(final BooleanSupplier condition) {
+        val deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+}
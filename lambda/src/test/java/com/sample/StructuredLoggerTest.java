@@ -0,0 +1,123 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StructuredLoggerTest {
+    private final List<String> sink = new ArrayList<>();
+
+    /**
+     * @return the written entries, each of which must be a single line JSON document.
+     */
+    private List<JsonObject> entries() {
+        return sink.stream()
+                .peek(line -> assertFalse(line.contains("\n")))
+                .map(line -> JsonParser.parseString(line).getAsJsonObject())
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void buffersRoutineEntriesUntilClose() {
+        val logger = new StructuredLogger(1, 100);
+        try (StructuredLogger.Batch log = logger.open(sink::add)) {
+            log.info("s3EventsReceived", "Found", StructuredLogger.fields("count", 1, "version", null));
+            log.info("sqsEventsReceived", "Found", Map.of());
+            assertTrue(sink.isEmpty());
+        }
+
+        val entries = entries();
+        assertEquals(2, entries.size());
+        assertEquals("INFO", entries.get(0).get("level").getAsString());
+        assertEquals(1, entries.get(0).get("count").getAsInt());
+        assertFalse(entries.get(0).has("version"));
+        assertEquals("sqsEventsReceived", entries.get(1).get("event").getAsString());
+    }
+
+    @Test
+    void buffersAuditEntriesAndWritesErrorsRightAway() {
+        val logger = new StructuredLogger(1, 100);
+        try (StructuredLogger.Batch log = logger.open(sink::add)) {
+            log.info("s3EventsReceived", "Found", Map.of());
+            log.audit("dacIssued", "Signed", StructuredLogger.fields("key", "a.pem"));
+            assertTrue(sink.isEmpty());
+            log.error("csrRejected", "Rejected", new RuntimeException("failed"), Map.of());
+            // Along with the entries buffered before it.
+            assertEquals(3, sink.size());
+        }
+
+        val entries = entries();
+        assertEquals(3, entries.size());
+        assertEquals("INFO", entries.get(0).get("level").getAsString());
+        assertEquals("AUDIT", entries.get(1).get("level").getAsString());
+        assertEquals("a.pem", entries.get(1).get("key").getAsString());
+        assertEquals("ERROR", entries.get(2).get("level").getAsString());
+    }
+
+    @Test
+    void flushesEarlyWhenBufferIsFull() {
+        val logger = new StructuredLogger(1, 2);
+        try (StructuredLogger.Batch log = logger.open(sink::add)) {
+            for (int i = 0; i < 3; ++i) {
+                log.info("s3EventsReceived", "Found", Map.of());
+            }
+            assertEquals(2, sink.size());
+        }
+        assertEquals(3, entries().size());
+    }
+
+    @Test
+    void writesTraceOncePerFingerprint() {
+        val logger = new StructuredLogger();
+        val ex = new RuntimeException("first", new IllegalStateException("cause"));
+        try (StructuredLogger.Batch log = logger.open(sink::add)) {
+            log.error("csrRejected", "Rejected", ex, Map.of());
+        }
+        try (StructuredLogger.Batch log = logger.open(sink::add)) {
+            log.error("csrRejected", "Rejected", ex, Map.of());
+        }
+
+        val entries = entries();
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).get("trace").getAsString().contains("cause"));
+        assertFalse(entries.get(1).has("trace"));
+        // The messages are kept even without the trace.
+        assertTrue(entries.get(1).get("exception").getAsString().contains("first"));
+        assertTrue(entries.get(1).get("rootCause").getAsString().contains("cause"));
+        assertEquals(entries.get(0).get("traceFingerprint"), entries.get(1).get("traceFingerprint"));
+        assertEquals(StructuredLogger.fingerprint(ex), StructuredLogger.fingerprint(ex));
+    }
+
+    @Test
+    void samplesRoutineEntries() {
+        val logger = new StructuredLogger(3, 100);
+        try (StructuredLogger.Batch log = logger.open(sink::add)) {
+            for (int i = 0; i < 7; ++i) {
+                log.info("s3EventsReceived", "Found", Map.of());
+                log.audit("dacIssued", "Signed", Map.of());
+            }
+        }
+
+        val entries = entries();
+        assertEquals(3, entries.stream().filter(e -> e.get("event").getAsString().equals("s3EventsReceived")).count());
+        assertEquals(7, entries.stream().filter(e -> e.get("event").getAsString().equals("dacIssued")).count());
+        val summary = entries.get(entries.size() - 1);
+        assertEquals("sampled", summary.get("event").getAsString());
+        assertEquals(4, summary.getAsJsonObject("suppressed").get("s3EventsReceived").getAsInt());
+    }
+}
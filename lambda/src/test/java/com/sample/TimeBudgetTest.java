@@ -0,0 +1,61 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: MIT-0
+ */
+
+package com.sample;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeBudgetTest {
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+
+    @Test
+    void usesDefaultCostUntilFirstItem() {
+        val budget = new TimeBudget(TimeBudget.SAFETY_MARGIN_MILLIS + TimeBudget.DEFAULT_ITEM_COST_MILLIS, clock::get);
+        assertEquals(TimeBudget.DEFAULT_ITEM_COST_MILLIS, budget.predictedItemCostMillis());
+        assertTrue(budget.canStart(1));
+        assertFalse(budget.canStart(2));
+    }
+
+    @Test
+    void predictsFromSlowestRecentItem() {
+        val budget = new TimeBudget(60_000L, clock::get);
+        for (final long latency : new long[]{1_000L, 7_000L, 2_000L}) {
+            val start = budget.now();
+            clock.addAndGet(latency);
+            budget.recordItem(start);
+        }
+        assertEquals(7_000L, budget.predictedItemCostMillis());
+        assertEquals(60_000L - TimeBudget.SAFETY_MARGIN_MILLIS - 10_000L, budget.remainingMillis());
+    }
+
+    @Test
+    void forgetsOldLatencies() {
+        val budget = new TimeBudget(600_000L, clock::get);
+        var start = budget.now();
+        clock.addAndGet(30_000L);
+        budget.recordItem(start);
+        for (int i = 0; i < TimeBudget.WINDOW_SIZE; ++i) {
+            start = budget.now();
+            clock.addAndGet(100L);
+            budget.recordItem(start);
+        }
+        assertEquals(100L, budget.predictedItemCostMillis());
+    }
+
+    @Test
+    void stopsAtDeadline() {
+        val budget = new TimeBudget(10_000L, clock::get);
+        clock.addAndGet(20_000L);
+        assertEquals(0L, budget.remainingMillis());
+        assertFalse(budget.canStart(1));
+    }
+}
@@ -33,8 +33,9 @@ import {
     ServicePrincipal
 } from 'aws-cdk-lib/aws-iam';
 import {S3EventSelector, Trail} from "aws-cdk-lib/aws-cloudtrail"
-import {Bucket, BucketEncryption, CfnBucket, StorageClass} from 'aws-cdk-lib/aws-s3';
-import {Schedule} from "aws-cdk-lib/aws-events";
+import {Bucket, BucketEncryption, CfnBucket, EventType, StorageClass} from 'aws-cdk-lib/aws-s3';
+import {LambdaDestination} from 'aws-cdk-lib/aws-s3-notifications';
+import {EventBus, Schedule} from "aws-cdk-lib/aws-events";
 import {BackupPlan, BackupPlanRule, BackupResource, BackupVault} from "aws-cdk-lib/aws-backup";
 import {LogGroup, MetricFilter, RetentionDays} from "aws-cdk-lib/aws-logs";
 import * as pca from "aws-cdk-lib/aws-acmpca";
@@ -154,6 +155,11 @@ export class MatterStack extends Stack {
                 type: "Number",
                 description: "Validity in days for DACs issued by the Lambda."
             }).valueAsNumber;
+            const paiPools = new CfnParameter(this, "paiPools", {
+                type: "String",
+                description: "JSON object mapping PAI pool names to lists of ARNs of PAIs with the same VID/PID, e.g. {\"light\":[\"<PAI_ARN1>\",\"<PAI_ARN2>\"]}",
+                default: '{}'
+            }).valueAsString;
             const paaArn = new CfnParameter(this, "paaArn", {
                 type: "String",
                 description: "ARN of the PAA"
@@ -210,7 +216,7 @@ export class MatterStack extends Stack {
                 MatterStack.MATTER_AUDIT_LOGGING_BACKUP_ROLE_NAME)
             this.matterIssueDACRole =
                 Role.fromRoleName(this, "MatterIssueDACRoleInPAIStack", MatterStack.MATTER_ISSUE_DAC_ROLE)
-            this.createDacIssuingLambda(dacValidityInDays);
+            this.createDacIssuingLambda(dacValidityInDays, paiPools);
         }
 
         // Regional resources shared between PAA and PAI stacks.
@@ -1162,11 +1168,15 @@ export class MatterStack extends Stack {
         }).getResponseField('Certificate');
     }
 
-    private createDacIssuingLambda(dacValidityInDays: number) {
+    private createDacIssuingLambda(dacValidityInDays: number, paiPools: string) {
         const lambdaTimeout = Duration.minutes(1);
         const lambdaBatchSize = 5;
         const pcaIssueCertificateMaxTps = 25;
         const lambdaAvgExecTimeInSeconds = 11;
+        const maxReceiveCount = 5;
+        // Part of the IssueCertificate quota left to the backfill, so re-issuing doesn't throttle the DACs of new uploads.
+        const backfillIssueCertificateTps = 5;
+        const dacIssueCertificateTps = pcaIssueCertificateMaxTps - backfillIssueCertificateTps;
 
         const s3ToSqs = new S3ToSqs(this, 'DacInputS3ToSQS', {
             s3EventFilters: [
@@ -1188,24 +1198,31 @@ export class MatterStack extends Stack {
 
         s3ToSqs.s3LoggingBucket?.grantRead(this.matterAuditorRole);
 
+        // The native image (./gradlew -Pnative :lambda:buildNativeZip) runs the same handler on a custom runtime.
+        const nativeDacLambda = this.node.tryGetContext('nativeDacLambda') !== undefined;
         const sqsToLambda = new SqsToLambda(this, 'SqsToDacIssuingLambda', {
             existingQueueObj: s3ToSqs.sqsQueue,
             lambdaFunctionProps: {
                 // https://docs.aws.amazon.com/lambda/latest/dg/java-package.html#java-package-gradle
-                code: lambda.Code.fromAsset('lambda/build/distributions/lambda.zip'),
-                runtime: lambda.Runtime.JAVA_17,
+                code: lambda.Code.fromAsset(nativeDacLambda
+                    ? 'lambda/build/distributions/lambda-native.zip'
+                    : 'lambda/build/distributions/lambda.zip'),
+                runtime: nativeDacLambda ? lambda.Runtime.PROVIDED_AL2 : lambda.Runtime.JAVA_17,
                 handler: 'com.sample.Handler',
 
                 timeout: lambdaTimeout,
                 memorySize: 512,
-                reservedConcurrentExecutions: pcaIssueCertificateMaxTps / lambdaBatchSize * lambdaAvgExecTimeInSeconds,
+                reservedConcurrentExecutions: dacIssueCertificateTps / lambdaBatchSize * lambdaAvgExecTimeInSeconds,
 
                 logRetention: RetentionDays.TWO_MONTHS,
                 environment: {
-                    "dacValidityInDays": dacValidityInDays.toString()
+                    "dacValidityInDays": dacValidityInDays.toString(),
+                    "paiPools": paiPools,
+                    // The last delivery records the outcome of a CSR as final, as the message goes to the dead-letter queue then.
+                    "maxReceiveCount": maxReceiveCount.toString()
                 }
             },
-            maxReceiveCount: 5, // Number of retries
+            maxReceiveCount: maxReceiveCount, // Number of retries
             sqsEventSourceProps: {
                 reportBatchItemFailures: true,
                 batchSize: lambdaBatchSize,
@@ -1233,5 +1250,82 @@ export class MatterStack extends Stack {
             value: sqsToLambda.lambdaFunction.functionName,
             description: 'The name of the Lambda Function that issues DACs',
         });
+
+        this.createDacBackfillLambda(s3ToSqs.s3Bucket!, dacValidityInDays, paiPools,
+            backfillIssueCertificateTps, lambdaAvgExecTimeInSeconds / lambdaBatchSize);
+        this.createDacManifestLambda(s3ToSqs.s3Bucket!);
+    }
+
+    // Writes the manifest of a client batch once the outcomes of all its CSRs are recorded, apart from the DAC issuance, so a large
+    // batch doesn't eat into the time of the Lambda issuing its last DACs.
+    private createDacManifestLambda(dacBucket: Bucket) {
+        const manifestLambda = new lambda.Function(this, 'DacManifestLambda', {
+            code: lambda.Code.fromAsset('lambda/build/distributions/lambda.zip'),
+            runtime: lambda.Runtime.JAVA_17,
+            handler: 'com.sample.ManifestHandler',
+
+            // Enough to read back the outcomes of the largest batch (ManifestAggregator.MAX_BATCH_SIZE).
+            timeout: Duration.minutes(5),
+            memorySize: 1024,
+
+            logRetention: RetentionDays.TWO_MONTHS,
+            environment: {
+                "completionEventBus": "default"
+            }
+        });
+        Tags.of(manifestLambda).add(MatterStack.matterPKITag, "");
+
+        dacBucket.grantReadWrite(manifestLambda);
+        // Completion events let the clients wait for their DACs instead of polling the bucket.
+        EventBus.fromEventBusName(this, 'DacCompletionEventBus', 'default').grantPutEventsTo(manifestLambda);
+        dacBucket.addEventNotification(EventType.OBJECT_CREATED, new LambdaDestination(manifestLambda),
+            {suffix: '.completion.json'});
+    }
+
+    // Re-issues DACs for the CSRs already in the bucket, driven by an S3 Batch Operations job rather than S3 notifications.
+    private createDacBackfillLambda(dacBucket: Bucket, dacValidityInDays: number, paiPools: string,
+                                    issueCertificateTps: number, avgCsrExecTimeInSeconds: number) {
+        // The account's IssueCertificate quota (pcaIssueCertificateMaxTps) is split between the Lambdas: the DAC issuing one is
+        // sized for what's left after issueCertificateTps. S3 Batch Operations (invocation schema 1.0) passes a single CSR per
+        // invocation, taking avgCsrExecTimeInSeconds, so this many concurrent invocations issue about issueCertificateTps.
+        const backfillConcurrency = Math.max(1, Math.floor(issueCertificateTps * avgCsrExecTimeInSeconds));
+
+        const backfillLambda = new lambda.Function(this, 'DacBackfillLambda', {
+            code: lambda.Code.fromAsset('lambda/build/distributions/lambda.zip'),
+            runtime: lambda.Runtime.JAVA_17,
+            handler: 'com.sample.BackfillHandler',
+
+            timeout: Duration.minutes(5),
+            memorySize: 1024,
+            reservedConcurrentExecutions: backfillConcurrency,
+
+            logRetention: RetentionDays.TWO_MONTHS,
+            environment: {
+                "dacValidityInDays": dacValidityInDays.toString(),
+                "paiPools": paiPools
+            }
+        });
+        Tags.of(backfillLambda).add(MatterStack.matterPKITag, "");
+
+        dacBucket.grantReadWrite(backfillLambda);
+        for (const stmt of this.getPolicyStatementsForDACIssuance()) {
+            backfillLambda.addToRolePolicy(stmt);
+        }
+
+        // The role the S3 Batch Operations job runs with: it reads the manifest and writes the report to the DAC bucket.
+        const batchOperationsRole = new Role(this, 'DacBackfillBatchOperationsRole', {
+            assumedBy: new ServicePrincipal('batchoperations.s3.amazonaws.com'),
+        });
+        backfillLambda.grantInvoke(batchOperationsRole);
+        dacBucket.grantReadWrite(batchOperationsRole);
+
+        new CfnOutput(this, 'DACBackfillLambdaFunctionArn', {
+            value: backfillLambda.functionArn,
+            description: 'The ARN of the Lambda Function that re-issues DACs for the CSRs listed by an S3 Batch Operations job',
+        });
+        new CfnOutput(this, 'DACBackfillBatchOperationsRoleArn', {
+            value: batchOperationsRole.roleArn,
+            description: 'The role for S3 Batch Operations jobs invoking the DAC backfill Lambda Function',
+        });
     }
 }
\ No newline at end of file